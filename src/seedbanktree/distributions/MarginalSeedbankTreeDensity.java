@@ -0,0 +1,338 @@
+package seedbanktree.distributions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.util.InputUtil;
+import seedbanktree.evolution.tree.SeedbankCoalescentSimulator;
+import seedbanktree.evolution.tree.SeedbankNode;
+import seedbanktree.evolution.tree.SeedbankTree;
+import seedbanktree.evolution.tree.TransitionModel;
+import seedbanktree.evolution.tree.TransitionModelSnapshot;
+
+@Description("Approximate density of the topology and node times of a seedbank tree "
+		+ "with lineage types integrated out, following the MASCOT approximation "
+		+ "to the structured coalescent. Only the types of sampled lineages are used; "
+		+ "internal node types and type changes are ignored.")
+public class MarginalSeedbankTreeDensity extends Distribution {
+
+	public Input<SeedbankTree> sbTreeInput = new Input<>("tree",
+			"Seedbank tree.", Validate.REQUIRED);
+
+	public Input<TransitionModel> transitionModelInput = new Input<>(
+            "transitionModel", "Model of transition between activity and dormancy.",
+            Validate.REQUIRED);
+
+    public Input<Double> stepScaleInput = new Input<>(
+            "stepScale", "Largest integration step as a fraction of the time scale "
+            +"of the fastest rate in an interval. (Default 0.05.)", 0.05);
+
+    private static final Comparator<Node> BY_HEIGHT = Comparator.comparingDouble(Node::getHeight);
+
+    private SeedbankTree sbTree;
+    private TransitionModel transitionModel;
+    private TransitionModelSnapshot model;
+    private double stepScale;
+
+    // Nodes ordered from tips to root, and their numbers, which remain
+    // valid while the tree is clean and its state version is unchanged:
+    private Node[] sortedNodes;
+    private int[] sortedNodeNrs, storedSortedNodeNrs;
+    private long sortedVersion, storedSortedVersion;
+    private boolean sortedKnown, storedSortedKnown;
+
+    // Probability that each extant lineage is active, together with the
+    // mapping between lineage slots and node numbers:
+    private double[] activeProbs;
+    private int[] slotOfNode, nodeOfSlot;
+    private int lineageCount;
+
+    // Runge-Kutta scratch space:
+    private double[] k1, k2, k3, k4, probsTmp;
+
+    private double theta, m_ad, m_da;
+
+	@Override
+    public void initAndValidate() {
+        sbTree = sbTreeInput.get();
+        transitionModel = transitionModelInput.get();
+        stepScale = stepScaleInput.get();
+        if (!(stepScale > 0))
+            throw new IllegalArgumentException("stepScale must be positive.");
+	}
+
+	@Override
+    public double calculateLogP() {
+
+        model = transitionModel.getSnapshot();
+        if (!model.hasValidEpochStartTimes()) {
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+        
+        int epoch = 0;
+        setEpochRates(epoch);
+        double nextEpochTime = model.getEpochCount() > 1
+                ? model.getEpochStartTime(1) : Double.POSITIVE_INFINITY;
+
+        int nodeCount = sbTree.getNodeCount();
+        if (sortedNodes == null || sortedNodes.length != nodeCount) {
+            sortedNodes = new Node[nodeCount];
+            sortedNodeNrs = new int[nodeCount];
+            storedSortedNodeNrs = new int[nodeCount];
+            sortedKnown = false;
+            storedSortedKnown = false;
+            activeProbs = new double[nodeCount];
+            slotOfNode = new int[nodeCount];
+            nodeOfSlot = new int[nodeCount];
+            k1 = new double[nodeCount];
+            k2 = new double[nodeCount];
+            k3 = new double[nodeCount];
+            k4 = new double[nodeCount];
+            probsTmp = new double[nodeCount];
+        }
+        updateSortedNodes();
+
+        logP = 0.0;
+        lineageCount = 0;
+        double t = sortedNodes[0].getHeight();
+        for (Node node : sortedNodes) {
+
+            // Epoch boundaries split the interval:
+            while (nextEpochTime <= node.getHeight()) {
+                if (nextEpochTime > t) {
+                    logP += integrateInterval(nextEpochTime - t);
+                    t = nextEpochTime;
+                }
+                epoch += 1;
+                setEpochRates(epoch);
+                nextEpochTime = epoch + 1 < model.getEpochCount()
+                        ? model.getEpochStartTime(epoch + 1) : Double.POSITIVE_INFINITY;
+            }
+
+            // Interval contribution:
+            double dt = node.getHeight() - t;
+            if (dt > 0) {
+                logP += integrateInterval(dt);
+                t = node.getHeight();
+            }
+
+            // Event contribution:
+            int nr = node.getNr();
+            if (node.isLeaf()) {
+                int slot = lineageCount++;
+                activeProbs[slot] = ((SeedbankNode)node).getNodeType() == 1 ? 1.0 : 0.0;
+                slotOfNode[nr] = slot;
+                nodeOfSlot[slot] = nr;
+            } else {
+                int leftNr = node.getLeft().getNr();
+                int rightNr = node.getRight().getNr();
+                double pairProb = activeProbs[slotOfNode[leftNr]]*activeProbs[slotOfNode[rightNr]];
+                if (!(pairProb > 0)) {
+                    logP = Double.NEGATIVE_INFINITY;
+                    return logP;
+                }
+                logP += Math.log(pairProb/theta);
+
+                // Coalescence happens among active lineages, so the parent
+                // lineage starts out active:
+                removeLineage(rightNr);
+                int slot = slotOfNode[leftNr];
+                activeProbs[slot] = 1.0;
+                slotOfNode[nr] = slot;
+                nodeOfSlot[slot] = nr;
+            }
+        }
+
+        return logP;
+    }
+
+    /**
+     * Order the nodes of the tree from tips to root. Node heights are only
+     * sorted when the tree may have changed since the order was last found,
+     * so moves of the transition model alone reuse the previous order.
+     */
+    private void updateSortedNodes() {
+        int nodeCount = sortedNodes.length;
+        if (sortedKnown && !sbTree.somethingIsDirty()
+                && sortedVersion == sbTree.getStateVersion()) {
+            for (int i = 0; i < nodeCount; i++)
+                sortedNodes[i] = sbTree.getNode(sortedNodeNrs[i]);
+            return;
+        }
+        
+        System.arraycopy(sbTree.getNodesAsArray(), 0, sortedNodes, 0, nodeCount);
+        Arrays.sort(sortedNodes, BY_HEIGHT);
+        for (int i = 0; i < nodeCount; i++)
+            sortedNodeNrs[i] = sortedNodes[i].getNr();
+        sortedVersion = sbTree.getStateVersion();
+        sortedKnown = true;
+    }
+
+    /**
+     * @param epoch index of epoch whose rates are to be used
+     */
+    private void setEpochRates(int epoch) {
+        theta = model.getPopSize(1, epoch);
+        m_ad = model.getBackwardRate(1, 0, epoch);
+        m_da = model.getBackwardRate(0, 1, epoch);
+    }
+
+    /**
+     * Remove a lineage, moving the lineage in the last slot into its place.
+     *
+     * @param nr number of node at base of lineage
+     */
+    private void removeLineage(int nr) {
+        int slot = slotOfNode[nr];
+        int last = --lineageCount;
+        activeProbs[slot] = activeProbs[last];
+        nodeOfSlot[slot] = nodeOfSlot[last];
+        slotOfNode[nodeOfSlot[slot]] = slot;
+    }
+
+    /**
+     * Propagate lineage activity probabilities across an interval using
+     * fourth-order Runge-Kutta steps.
+     *
+     * @param dt length of interval
+     * @return log probability of no coalescence during interval
+     */
+    private double integrateInterval(double dt) {
+
+        double maxRate = m_ad + m_da + Math.max(lineageCount - 1, 0)/theta;
+        int nSteps = Math.max(1, (int)Math.ceil(dt*maxRate/stepScale));
+        double h = dt/nSteps;
+
+        double logProb = 0.0;
+        for (int step = 0; step < nSteps; step++) {
+            double l1 = derivatives(activeProbs, k1);
+            advance(activeProbs, k1, 0.5*h);
+            double l2 = derivatives(probsTmp, k2);
+            advance(activeProbs, k2, 0.5*h);
+            double l3 = derivatives(probsTmp, k3);
+            advance(activeProbs, k3, h);
+            double l4 = derivatives(probsTmp, k4);
+
+            for (int i = 0; i < lineageCount; i++) {
+                double p = activeProbs[i] + h*(k1[i] + 2*k2[i] + 2*k3[i] + k4[i])/6.0;
+                activeProbs[i] = Math.min(1.0, Math.max(0.0, p));
+            }
+            logProb += h*(l1 + 2*l2 + 2*l3 + l4)/6.0;
+        }
+
+        return logProb;
+    }
+
+    /**
+     * Set probsTmp to probs + h*deriv.
+     */
+    private void advance(double[] probs, double[] deriv, double h) {
+        for (int i = 0; i < lineageCount; i++)
+            probsTmp[i] = probs[i] + h*deriv[i];
+    }
+
+    /**
+     * Evaluate the time derivatives of the lineage activity probabilities,
+     * conditional on no coalescence having occurred.
+     *
+     * @param probs activity probabilities
+     * @param dest array to which derivatives are written
+     * @return rate of change of log probability of no coalescence
+     */
+    private double derivatives(double[] probs, double[] dest) {
+        double sum = 0.0, sumSq = 0.0;
+        for (int i = 0; i < lineageCount; i++) {
+            sum += probs[i];
+            sumSq += probs[i]*probs[i];
+        }
+
+        for (int i = 0; i < lineageCount; i++) {
+            double p = probs[i];
+            double coalRate = (sum - p)/theta;
+            dest[i] = -m_ad*p + m_da*(1.0 - p) - coalRate*p*(1.0 - p);
+        }
+
+        return -0.5*(sum*sum - sumSq)/theta;
+    }
+
+    @Override
+    public boolean requiresRecalculation() {
+        return InputUtil.isDirty(sbTreeInput)
+                || InputUtil.isDirty(transitionModelInput);
+    }
+
+    @Override
+    protected void store() {
+        if (sortedKnown)
+            System.arraycopy(sortedNodeNrs, 0, storedSortedNodeNrs, 0, sortedNodeNrs.length);
+        storedSortedVersion = sortedVersion;
+        storedSortedKnown = sortedKnown;
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        if (storedSortedKnown) {
+            int[] tmp = sortedNodeNrs;
+            sortedNodeNrs = storedSortedNodeNrs;
+            storedSortedNodeNrs = tmp;
+        }
+        sortedVersion = storedSortedVersion;
+        sortedKnown = storedSortedKnown;
+        super.restore();
+    }
+
+
+	// Distribution interface requirements
+
+	@Override
+	public List<String> getArguments() {
+		return null;
+	}
+
+	@Override
+	public List<String> getConditions() {
+		return null;
+	}
+
+	/**
+	 * Replace the tree by a draw from the exact seedbank coalescent, of
+	 * which this density is an approximation, with the leaf types, names
+	 * and times of the current tree.
+	 */
+	@Override
+	public void sample(State state, Random random) {
+		if (sampledFlag)
+			return;
+		sampledFlag = true;
+
+		// Cause transition model parameters to be sampled:
+		sampleConditions(state, random);
+
+		List<Integer> leafTypes = new ArrayList<>();
+		List<String> leafNames = new ArrayList<>();
+		List<Double> leafTimes = new ArrayList<>();
+		for (int i = 0; i < sbTree.getLeafNodeCount(); i++) {
+			SeedbankNode leaf = (SeedbankNode)sbTree.getNode(i);
+			leafTypes.add(leaf.getNodeType());
+			leafNames.add(leaf.getID());
+			leafTimes.add(leaf.getHeight());
+		}
+
+		SeedbankNode root = new SeedbankCoalescentSimulator(transitionModel, random)
+				.simulateTree(leafTypes, leafNames, leafTimes, false);
+		root.setParent(null);
+		sbTree.assignFromFragile(new SeedbankTree(root));
+	}
+
+}
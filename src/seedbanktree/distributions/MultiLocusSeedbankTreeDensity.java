@@ -0,0 +1,173 @@
+package seedbanktree.distributions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+
+@Description("Joint density of independent loci, each with its own seedbank tree, "
+		+ "sharing a single transition model. Loci needing recalculation are "
+		+ "evaluated on a pool of worker threads.")
+public class MultiLocusSeedbankTreeDensity extends Distribution {
+
+	public Input<List<SeedbankTreeDensity>> densityInput = new Input<>("density",
+			"Seedbank tree density of each locus.", new ArrayList<>());
+
+	public Input<Integer> threadsInput = new Input<>("threads",
+			"Number of worker threads. (Default 0: number of available processors.)", 0);
+
+	private List<SeedbankTreeDensity> densities;
+	// Results of the current evaluation for loci which were recalculated:
+	private double[] locusLogPs;
+	private boolean[] isRecalculated;
+	private boolean initialised;
+
+	// Loci needing recalculation, split between at most nThreads tasks:
+	private int nThreads;
+	private final List<Integer> taskLoci = new ArrayList<>();
+	private final List<Callable<Void>> tasks = new ArrayList<>();
+
+	/**
+	 * Pool of worker threads shared by all instances, created when first
+	 * needed. The threads are daemons, so the pool never has to be shut
+	 * down, and idle threads are released.
+	 */
+	private static class WorkerPool {
+		static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "seedbank-locus-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void initAndValidate() {
+		densities = densityInput.get();
+		if (densities.isEmpty())
+			throw new IllegalArgumentException("At least one locus density must be provided.");
+
+		// The gradient is taken with respect to the parameters of a single
+		// transition model:
+		for (SeedbankTreeDensity density : densities) {
+			if (density.transitionModelInput.get() != densities.get(0).transitionModelInput.get())
+				throw new IllegalArgumentException("All locus densities must share "
+						+ "the same transition model.");
+		}
+
+		locusLogPs = new double[densities.size()];
+		isRecalculated = new boolean[densities.size()];
+		initialised = false;
+
+		nThreads = threadsInput.get() > 0
+				? threadsInput.get() : Runtime.getRuntime().availableProcessors();
+		nThreads = Math.min(nThreads, densities.size());
+	}
+
+	@Override
+	public double calculateLogP() {
+
+		// Collect loci requiring recalculation:
+		taskLoci.clear();
+		for (int i = 0; i < densities.size(); i++) {
+			isRecalculated[i] = !initialised || densities.get(i).isDirtyCalculation();
+			if (isRecalculated[i])
+				taskLoci.add(i);
+		}
+
+		int nTasks = Math.min(nThreads, taskLoci.size());
+		if (nTasks > 1) {
+			// Each task evaluates every nTasks-th locus, so that no more than
+			// nThreads loci are evaluated at once:
+			tasks.clear();
+			for (int t = 0; t < nTasks; t++) {
+				int first = t;
+				tasks.add(() -> {
+					for (int j = first; j < taskLoci.size(); j += nTasks) {
+						int i = taskLoci.get(j);
+						locusLogPs[i] = densities.get(i).calculateLogP();
+					}
+					return null;
+				});
+			}
+			try {
+				for (Future<Void> result : WorkerPool.EXECUTOR.invokeAll(tasks))
+					result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while evaluating locus densities.", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Error evaluating locus density.", e.getCause());
+			}
+		} else {
+			for (int i : taskLoci)
+				locusLogPs[i] = densities.get(i).calculateLogP();
+		}
+		initialised = true;
+
+		// Combine in locus order so that the result does not depend on
+		// which thread finished first:
+		logP = 0.0;
+		for (int i = 0; i < densities.size(); i++)
+			logP += isRecalculated[i] ? locusLogPs[i] : densities.get(i).getCurrentLogP();
+
+		return logP;
+	}
+
+	/**
+	 * Obtain the gradient of the joint log density with respect to the
+	 * shared transition model parameters.
+	 *
+	 * @return partial derivatives wrt c, K and theta, in that order
+	 */
+	public double[] getGradient() {
+		double[] gradient = new double[3];
+		for (SeedbankTreeDensity density : densities) {
+			double[] locusGradient = density.getGradient();
+			for (int k = 0; k < gradient.length; k++)
+				gradient[k] += locusGradient[k];
+		}
+		return gradient;
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		for (SeedbankTreeDensity density : densities) {
+			if (density.isDirtyCalculation())
+				return true;
+		}
+		return false;
+	}
+
+
+	// Distribution interface requirements
+
+	@Override
+	public List<String> getArguments() {
+		return null;
+	}
+
+	@Override
+	public List<String> getConditions() {
+		return null;
+	}
+
+	@Override
+	public void sample(State state, Random random) {
+		if (sampledFlag)
+			return;
+		sampledFlag = true;
+
+		for (SeedbankTreeDensity density : densities)
+			density.sample(state, random);
+	}
+
+}
@@ -0,0 +1,191 @@
+package seedbanktree.distributions;
+
+import java.io.PrintStream;
+import java.lang.reflect.Array;
+
+/**
+ * Trace sink which records density contributions in a preallocated ring
+ * buffer of primitive columns. Once full, the oldest records are
+ * overwritten and counted as lost. Nothing is formatted until dump() is
+ * called.
+ */
+public class SeedbankTraceBuffer implements SeedbankTraceSink {
+
+    private static final byte INTERVAL = 3, TOTAL = 4;
+
+    private double[] times, durations, contributions;
+    private int[] activeCounts, dormantCounts;
+    private byte[] kinds, types;
+
+    private int next, size;
+    private long lostCount;
+
+    /**
+     * @param capacity maximum number of records retained
+     */
+    public SeedbankTraceBuffer(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Trace buffer capacity must be positive.");
+
+        times = new double[capacity];
+        durations = new double[capacity];
+        contributions = new double[capacity];
+        activeCounts = new int[capacity];
+        dormantCounts = new int[capacity];
+        kinds = new byte[capacity];
+        types = new byte[capacity];
+    }
+
+    @Override
+    public void recordInterval(double endTime, double duration,
+            int activeCount, int dormantCount, double logContribution) {
+        int i = advance();
+        kinds[i] = INTERVAL;
+        times[i] = endTime;
+        durations[i] = duration;
+        activeCounts[i] = activeCount;
+        dormantCounts[i] = dormantCount;
+        contributions[i] = logContribution;
+    }
+
+    @Override
+    public void recordEvent(double time, int kind, int type, double logContribution) {
+        int i = advance();
+        kinds[i] = (byte)kind;
+        types[i] = (byte)type;
+        times[i] = time;
+        contributions[i] = logContribution;
+    }
+
+    @Override
+    public void recordTotal(double logP) {
+        int i = advance();
+        kinds[i] = TOTAL;
+        contributions[i] = logP;
+    }
+
+    /**
+     * @return index of record slot to overwrite
+     */
+    private int advance() {
+        int i = next;
+        next = next + 1 < times.length ? next + 1 : 0;
+        if (size < times.length)
+            size += 1;
+        else
+            lostCount += 1;
+        return i;
+    }
+
+    /**
+     * Grow the buffer if it holds fewer than the given number of records,
+     * keeping the records it holds.
+     *
+     * @param capacity minimum number of records retained
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= times.length)
+            return;
+
+        int start = next - size;
+        if (start < 0)
+            start += times.length;
+        times = grow(times, start, capacity);
+        durations = grow(durations, start, capacity);
+        contributions = grow(contributions, start, capacity);
+        activeCounts = grow(activeCounts, start, capacity);
+        dormantCounts = grow(dormantCounts, start, capacity);
+        kinds = grow(kinds, start, capacity);
+        types = grow(types, start, capacity);
+        next = size;
+    }
+
+    /**
+     * Copy the records of a column, oldest first, into a larger array.
+     */
+    private <T> T grow(T column, int start, int capacity) {
+        @SuppressWarnings("unchecked")
+        T grown = (T)Array.newInstance(
+                column.getClass().getComponentType(), capacity);
+        int length = Array.getLength(column);
+        int first = Math.min(size, length - start);
+        System.arraycopy(column, start, grown, 0, first);
+        System.arraycopy(column, 0, grown, first, size - first);
+        return grown;
+    }
+
+    /**
+     * @return maximum number of records retained
+     */
+    public int getCapacity() {
+        return times.length;
+    }
+
+    /**
+     * @return number of records overwritten since the buffer was last
+     * cleared
+     */
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * @return number of records currently held
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Discard all records.
+     */
+    public void clear() {
+        next = 0;
+        size = 0;
+        lostCount = 0;
+    }
+
+    /**
+     * Print records from oldest to newest.
+     *
+     * @param out stream to print to
+     */
+    public void dump(PrintStream out) {
+        if (lostCount > 0)
+            out.println("(" + lostCount + " earlier records were overwritten)");
+
+        int start = next - size;
+        if (start < 0)
+            start += times.length;
+
+        for (int j = 0; j < size; j++) {
+            int i = (start + j) % times.length;
+            switch (kinds[i]) {
+                case INTERVAL:
+                    out.println("TIME CONTRIBUTION");
+                    out.println(String.format("Interval: %f (k_a=%d, k_d=%d)\nlogP: %f\n",
+                            durations[i], activeCounts[i], dormantCounts[i], contributions[i]));
+                    break;
+
+                case COALESCE:
+                    out.println(String.format("COALESCE EVENT at %f: logP: %f",
+                            times[i], contributions[i]));
+                    break;
+
+                case MIGRATE:
+                    out.println(String.format("MIGRATE EVENT at %f: %d to %d logP: %f",
+                            times[i], types[i], 1-types[i], contributions[i]));
+                    break;
+
+                case SAMPLE:
+                    out.println(String.format("SAMPLE at %f: logP: 0", times[i]));
+                    break;
+
+                case TOTAL:
+                    out.println("\nTotal logP: " + contributions[i]);
+                    out.println("---");
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package seedbanktree.distributions;
+
+/**
+ * Receiver for the individual interval and event contributions making up
+ * the seedbank tree density. SeedbankTreeDensity only walks its event
+ * sequence to produce these records when a sink is attached.
+ */
+public interface SeedbankTraceSink {
+
+    int SAMPLE = 0, COALESCE = 1, MIGRATE = 2;
+
+    /**
+     * Record the contribution of the interval ending at an event.
+     *
+     * @param endTime time of event ending the interval
+     * @param duration length of interval
+     * @param activeCount number of active lineages in interval
+     * @param dormantCount number of dormant lineages in interval
+     * @param logContribution contribution to log density
+     */
+    void recordInterval(double endTime, double duration,
+            int activeCount, int dormantCount, double logContribution);
+
+    /**
+     * Record the contribution of an event.
+     *
+     * @param time time of event
+     * @param kind one of SAMPLE, COALESCE or MIGRATE
+     * @param type type of lineage below event
+     * @param logContribution contribution to log density
+     */
+    void recordEvent(double time, int kind, int type, double logContribution);
+
+    /**
+     * Mark the end of an evaluation of the density.
+     *
+     * @param logP resulting log density
+     */
+    void recordTotal(double logP);
+}
@@ -2,20 +2,21 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
-import beast.base.evolution.tree.Node;
 import beast.base.inference.Distribution;
 import beast.base.inference.State;
+import beast.base.inference.util.InputUtil;
+import seedbanktree.evolution.tree.SeedbankCoalescentSimulator;
+import seedbanktree.evolution.tree.SeedbankEventSweep;
 import seedbanktree.evolution.tree.SeedbankNode;
 import seedbanktree.evolution.tree.SeedbankTree;
 import seedbanktree.evolution.tree.TransitionModel;
+import seedbanktree.evolution.tree.TransitionModelSnapshot;
 
 public class SeedbankTreeDensity extends Distribution {
 	
@@ -33,25 +34,67 @@ public class SeedbankTreeDensity extends Distribution {
             false);
     
     public Input<Boolean> debugLoggingInput = new Input<> (
-    		"debugLogging", "Print logging statements for testing. (Default false.)", false);
+    		"debugLogging", "Record the contribution of each interval and event "
+    		+"for testing. Records are printed when the density is not finite, "
+    		+"or on request through getDebugTrace(). (Default false.)", false);
+    
+    public Input<Boolean> parallelEvaluationInput = new Input<>(
+            "parallelEvaluation", "Sort events and accumulate their contributions "
+            +"on multiple threads for large trees. (Default false.)", false);
+    
+    public Input<Integer> parallelThresholdInput = new Input<>(
+            "parallelThreshold", "Minimum number of events handled in parallel "
+            +"when parallel evaluation is enabled. (Default 100000.)", 100000);
     
     private SeedbankTree sbTree;
     private TransitionModel transitionModel;
+    private TransitionModelSnapshot model;
     private boolean checkValidity, debugLogging;
     
-    private enum SBEventKind {
-        COALESCE, MIGRATE, SAMPLE
-    };
-
-    private class SBEvent {
-        double time;
-        int type, destType;
-        SBEventKind kind;
-        Node node;
-    }
+    // Receiver of individual contributions, if any. The debugLogging input
+    // installs a trace buffer which is grown to hold the records of the
+    // last DEBUG_TRACE_EVALUATIONS evaluations of the current tree.
+    private SeedbankTraceSink traceSink;
+    private SeedbankTraceBuffer debugTrace;
+    private static final int DEBUG_TRACE_EVALUATIONS = 4;
+    
+    // Events ordered from tips to root, together with the lineage counts
+    // in the interval ending at each event. Shared with any other readers
+    // of the same tree.
+    private SeedbankEventSweep eventSweep;
+    
+    // Sufficient statistics of the typed tree: the log density depends on
+    // the tree only through these quantities.
+    private double pairTime, activeTime, dormantTime;
+    private int coalescenceCount, deactivationCount, activationCount;
+    private double storedPairTime, storedActiveTime, storedDormantTime;
+    private int storedCoalescenceCount, storedDeactivationCount, storedActivationCount;
+    private boolean statisticsKnown;
+    // Tree state version the statistics were computed for:
+    private long statisticsVersion, storedStatisticsVersion;
     
-    private List<SBEvent> eventList;
-    private List<Integer[]> lineageCountList;
+    // Partial derivatives of logP with respect to c, K and theta:
+    private double[] gradient = new double[3], storedGradient = new double[3];
+    
+    // Sufficient statistics of each epoch when c or theta are piecewise
+    // constant, stored as STATISTIC_COUNT consecutive values per epoch in
+    // the order pair time, active time, dormant time, coalescences,
+    // deactivations and activations. Epoch terms of logP and of its
+    // gradient are cached with the parameter values they were
+    // computed for, so that changing one epoch's value costs O(1). Their
+    // sum is cached with the rate and population size versions of the
+    // model, so that it is reused as long as neither version changes.
+    private static final int STATISTIC_COUNT = 6;
+    private int nEpochs;
+    private double[] epochStatistics, storedEpochStatistics;
+    private double[] epochStartTimes, storedEpochStartTimes;
+    private double[] epochLogPs, epochGradients, epochThetas, epochCs, epochKs;
+    private double epochTermsLogP;
+    private long epochTermsRateVersion, epochTermsPopSizeVersion;
+    private double[] statisticsBefore = new double[STATISTIC_COUNT];
+    
+    // Number of points evaluated per task by parallel batch evaluation:
+    private static final int BATCH_CHUNK_SIZE = 4096;
 
 	@Override
     public void initAndValidate() {
@@ -60,201 +103,524 @@ public class SeedbankTreeDensity extends Distribution {
         checkValidity = checkValidityInput.get();
         debugLogging = debugLoggingInput.get();
         
-        eventList = new ArrayList<>();
-        lineageCountList = new ArrayList<>();
+        eventSweep = sbTree.getEventSweep();
+        if (debugLogging) {
+            debugTrace = new SeedbankTraceBuffer(1024);
+            traceSink = debugTrace;
+        }
+        if (parallelEvaluationInput.get()) {
+            if (parallelThresholdInput.get() < 1)
+                throw new IllegalArgumentException("parallelThreshold must be positive.");
+            eventSweep.setParallelThreshold(parallelThresholdInput.get());
+        }
+        
+        nEpochs = transitionModel.getEpochCount();
+        if (nEpochs > 1) {
+            epochStatistics = new double[nEpochs*STATISTIC_COUNT];
+            storedEpochStatistics = new double[nEpochs*STATISTIC_COUNT];
+            epochStartTimes = new double[nEpochs];
+            storedEpochStartTimes = new double[nEpochs];
+            epochLogPs = new double[nEpochs];
+            epochGradients = new double[3*nEpochs];
+            epochThetas = new double[nEpochs];
+            epochCs = new double[nEpochs];
+            epochKs = new double[nEpochs];
+            Arrays.fill(epochStartTimes, Double.NaN);
+            Arrays.fill(epochThetas, Double.NaN);
+        }
 	}
 
 	@Override
     public double calculateLogP() {
         
-        // Check validity of tree if required:
-        if (checkValidity && sbTree.somethingIsDirty() && !sbTree.isValid())
+        // Parameter values are read from a single immutable snapshot, so
+        // that loci may be evaluated concurrently:
+        model = transitionModel.getSnapshot();
+        
+        // Check validity of tree if required. Only edited parts of the tree
+        // are re-checked:
+        if (checkValidity && !sbTree.isValidIncremental())
+            return Double.NEGATIVE_INFINITY;
+        
+        // Estimated epoch times may have been moved out of order:
+        if (!model.hasValidEpochStartTimes())
             return Double.NEGATIVE_INFINITY;
 
-        // Ensure sequence of events is up-to-date:
+        // Ensure sequence of events and sufficient statistics are up-to-date:
+        updateStatistics();
+        
+        if (nEpochs > 1) {
+            logP = computeEpochLogP();
+        } else {
+            double theta = model.getPopSize(1);
+            double m_ad = model.getBackwardRate(1, 0);
+            double m_da = model.getBackwardRate(0, 1);
+            logP = computeLogP(theta, m_ad, m_da);
+            computeGradient(theta, m_ad, m_da, model.getK(), gradient);
+        }
+        
+        if (traceSink != null) {
+            if (traceSink == debugTrace) {
+                // One record per event and per interval, intervals being
+                // split at epoch boundaries, and one for the total:
+                int records = 2*eventSweep.getEventCount() + nEpochs + 1;
+                debugTrace.ensureCapacity(DEBUG_TRACE_EVALUATIONS*records);
+            }
+            
+            traceContributions();
+            
+            if (traceSink == debugTrace && !(logP > Double.NEGATIVE_INFINITY)) {
+                debugTrace.dump(System.out);
+                debugTrace.clear();
+            }
+        }
+        
+        return logP;
+    }
+    
+    /**
+     * Ensure the sufficient statistics describe the current tree. When only
+     * the transition model has changed the current statistics still apply
+     * and the event sequence is left alone. Epoch boundaries are read from
+     * the snapshot of the transition model taken by the caller.
+     */
+    private void updateStatistics() {
+        if (statisticsKnown && !sbTree.somethingIsDirty()
+                && statisticsVersion == sbTree.getStateVersion()) {
+            if (nEpochs > 1 && !epochStartTimesMatch()) {
+                updateEventSequence();
+                updateEpochStatistics();
+            }
+            return;
+        }
+        
         updateEventSequence();
-
-        // Start from the tips of the tree, working up.
-        logP = 0;
-
+        
+        pairTime = eventSweep.getTotalPairTime();
+        activeTime = eventSweep.getTotalActiveTime();
+        dormantTime = eventSweep.getTotalDormantTime();
+        coalescenceCount = eventSweep.getCoalescenceCount();
+        deactivationCount = eventSweep.getDeactivationCount();
+        activationCount = eventSweep.getActivationCount();
+        statisticsKnown = true;
+        statisticsVersion = sbTree.getStateVersion();
+        
+        if (nEpochs > 1)
+            updateEpochStatistics();
+    }
+    
+    /**
+     * @return true if the epoch statistics were computed for the current
+     * epoch boundaries
+     */
+    private boolean epochStartTimesMatch() {
+        for (int e = 1; e < nEpochs; e++) {
+            if (epochStartTimes[e] != model.getEpochStartTime(e))
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Split the running statistics of the event sequence at the epoch
+     * boundaries. Each boundary is located by binary search, so no further
+     * pass over the events is needed.
+     */
+    private void updateEpochStatistics() {
+        Arrays.fill(epochStatistics, 0, STATISTIC_COUNT, 0.0);
+        for (int e = 1; e <= nEpochs; e++) {
+            int offset = (e-1)*STATISTIC_COUNT;
+            
+            // Statistics accumulated before the end of epoch e-1:
+            if (e < nEpochs) {
+                epochStartTimes[e] = model.getEpochStartTime(e);
+                eventSweep.getStatisticsBefore(epochStartTimes[e], statisticsBefore);
+            } else {
+                statisticsBefore[0] = pairTime;
+                statisticsBefore[1] = activeTime;
+                statisticsBefore[2] = dormantTime;
+                statisticsBefore[3] = coalescenceCount;
+                statisticsBefore[4] = deactivationCount;
+                statisticsBefore[5] = activationCount;
+            }
+            
+            // Epoch e-1 receives the difference from its start, which was
+            // written to its slot by the previous iteration:
+            for (int k = 0; k < STATISTIC_COUNT; k++) {
+                double before = statisticsBefore[k];
+                epochStatistics[offset + k] = before - epochStatistics[offset + k];
+                if (e < nEpochs)
+                    epochStatistics[offset + STATISTIC_COUNT + k] = before;
+            }
+        }
+        
+        // Cached epoch terms no longer apply:
+        invalidateEpochTerms();
+    }
+    
+    private void invalidateEpochTerms() {
+        Arrays.fill(epochThetas, Double.NaN);
+        epochTermsRateVersion = 0;
+        epochTermsPopSizeVersion = 0;
+    }
+    
+    /**
+     * Evaluate the log density and its gradient from the per-epoch
+     * sufficient statistics, recomputing only the terms of epochs whose
+     * parameter values have changed. Nothing is recomputed if neither the
+     * rate nor the population size version of the model has changed.
+     * 
+     * @return log density
+     */
+    private double computeEpochLogP() {
+        if (model.getRateVersion() == epochTermsRateVersion
+                && model.getPopSizeVersion() == epochTermsPopSizeVersion)
+            return epochTermsLogP;
+        
+        double K = model.getK();
+        
+        double logP = 0.0;
+        Arrays.fill(gradient, 0.0);
+        for (int e = 0; e < nEpochs; e++) {
+            double theta = model.getPopSize(1, e);
+            double m_ad = model.getBackwardRate(1, 0, e);
+            
+            if (theta != epochThetas[e] || m_ad != epochCs[e] || K != epochKs[e]) {
+                int offset = e*STATISTIC_COUNT;
+                double S = epochStatistics[offset], T_a = epochStatistics[offset+1];
+                double T_d = epochStatistics[offset+2], n_coal = epochStatistics[offset+3];
+                double n_ad = epochStatistics[offset+4], n_da = epochStatistics[offset+5];
+                double m_da = m_ad*K;
+                
+                double epochLogP = -(S/theta + T_a*m_ad + T_d*m_da) - n_coal*Math.log(theta);
+                double dm_ad = -T_a, dm_da = -T_d;
+                if (n_ad > 0) {
+                    epochLogP += n_ad*Math.log(m_ad);
+                    dm_ad += n_ad/m_ad;
+                }
+                if (n_da > 0) {
+                    epochLogP += n_da*Math.log(m_da);
+                    dm_da += n_da/m_da;
+                }
+                
+                epochLogPs[e] = epochLogP;
+                epochGradients[3*e] = dm_ad + K*dm_da;
+                epochGradients[3*e+1] = m_ad*dm_da;
+                epochGradients[3*e+2] = S/(theta*theta) - n_coal/theta;
+                epochThetas[e] = theta;
+                epochCs[e] = m_ad;
+                epochKs[e] = K;
+            }
+            
+            logP += epochLogPs[e];
+            gradient[0] += epochGradients[3*e];
+            gradient[1] += epochGradients[3*e+1];
+            gradient[2] += epochGradients[3*e+2];
+        }
+        
+        epochTermsLogP = logP;
+        epochTermsRateVersion = model.getRateVersion();
+        epochTermsPopSizeVersion = model.getPopSizeVersion();
+        return logP;
+    }
+    
+    /**
+     * Evaluate the log density of the current tree at many transition
+     * model parameter values. The tree is swept at most once, after which
+     * each point costs a handful of arithmetic operations. The rates of
+     * the transition model are neither read nor modified. With several
+     * epochs each point applies to all of them, so the density is
+     * evaluated from the statistics summed over epochs. Every point has
+     * density zero if the tree or the epoch times are invalid, as in
+     * calculateLogP().
+     * 
+     * @param cValues values of c
+     * @param KValues values of K
+     * @param thetaValues values of theta
+     * @param parallel if true, points are split across threads
+     * @return log density at each point
+     */
+    public double[] calculateLogP(double[] cValues, double[] KValues,
+            double[] thetaValues, boolean parallel) {
+        
+        int n = cValues.length;
+        if (KValues.length != n || thetaValues.length != n)
+            throw new IllegalArgumentException("Parameter arrays must have equal lengths.");
+        
+        double[] logPs = new double[n];
+        
+        model = transitionModel.getSnapshot();
+        if ((checkValidity && !sbTree.isValidIncremental())
+                || !model.hasValidEpochStartTimes()) {
+            Arrays.fill(logPs, Double.NEGATIVE_INFINITY);
+            return logPs;
+        }
+        
+        updateStatistics();
+        
+        if (parallel && n >= 2*BATCH_CHUNK_SIZE) {
+            int nChunks = (n + BATCH_CHUNK_SIZE - 1)/BATCH_CHUNK_SIZE;
+            IntStream.range(0, nChunks).parallel().forEach(chunk ->
+                    computeLogP(cValues, KValues, thetaValues, logPs,
+                            chunk*BATCH_CHUNK_SIZE,
+                            Math.min(n, (chunk+1)*BATCH_CHUNK_SIZE)));
+        } else
+            computeLogP(cValues, KValues, thetaValues, logPs, 0, n);
+        
+        return logPs;
+    }
+    
+    /**
+     * Batch version of computeLogP() for a range of points.
+     * 
+     * @param cValues values of c
+     * @param KValues values of K
+     * @param thetaValues values of theta
+     * @param dest array to which log densities are written
+     * @param from first point
+     * @param to one past last point
+     */
+    private void computeLogP(double[] cValues, double[] KValues,
+            double[] thetaValues, double[] dest, int from, int to) {
+        
+        // Hoist statistics into locals. As in the scalar version, the rate
+        // of an event type which does not occur contributes no log term.
+        double S = pairTime, T_a = activeTime, T_d = dormantTime;
+        double n_coal = coalescenceCount;
+        double n_ad = deactivationCount, n_da = activationCount;
+        
+        for (int i = from; i < to; i++) {
+            double m_ad = cValues[i], m_da = m_ad*KValues[i], theta = thetaValues[i];
+            dest[i] = -(S/theta + T_a*m_ad + T_d*m_da)
+                    - n_coal*Math.log(theta)
+                    + (n_ad > 0 ? n_ad*Math.log(m_ad) : 0.0)
+                    + (n_da > 0 ? n_da*Math.log(m_da) : 0.0);
+        }
+    }
+    
+    /**
+     * Evaluate the log density of the typed tree from its sufficient
+     * statistics.
+     * 
+     * @param theta scaled active population size
+     * @param m_ad backward active to dormant transition rate
+     * @param m_da backward dormant to active transition rate
+     * @return log density
+     */
+    private double computeLogP(double theta, double m_ad, double m_da) {
+        
+        // Interval contributions:
+        double logP = -(pairTime/theta + activeTime*m_ad + dormantTime*m_da);
+        
+        // Event contributions:
+        logP += coalescenceCount*Math.log(1.0/theta);
+        if (deactivationCount > 0)
+            logP += deactivationCount*Math.log(m_ad);
+        if (activationCount > 0)
+            logP += activationCount*Math.log(m_da);
+        
+        return logP;
+    }
+    
+    /**
+     * Evaluate the partial derivatives of the log density with respect to
+     * c, K and theta, where the backward rates are m_ad = c and m_da = cK.
+     * 
+     * @param theta scaled active population size
+     * @param m_ad backward active to dormant transition rate
+     * @param m_da backward dormant to active transition rate
+     * @param K relative seedbank size
+     * @param dest array to which derivatives wrt c, K and theta are written
+     */
+    private void computeGradient(double theta, double m_ad, double m_da,
+            double K, double[] dest) {
+        
+        double dm_ad = -activeTime;
+        if (deactivationCount > 0)
+            dm_ad += deactivationCount/m_ad;
+        
+        double dm_da = -dormantTime;
+        if (activationCount > 0)
+            dm_da += activationCount/m_da;
+        
+        dest[0] = dm_ad + K*dm_da;
+        dest[1] = m_ad*dm_da;
+        dest[2] = pairTime/(theta*theta) - coalescenceCount/theta;
+    }
+    
+    /**
+     * Obtain the gradient of the current log density with respect to the
+     * transition model parameters. Computed alongside logP by
+     * calculateLogP(). With multiple epochs the entries for c and theta are
+     * summed over epochs, i.e. they are the derivatives wrt c and theta
+     * when these take a single value.
+     * 
+     * @return partial derivatives wrt c, K and theta, in that order
+     */
+    public double[] getGradient() {
+        return gradient.clone();
+    }
+    
+    /**
+     * Obtain the contribution of one epoch to the gradient of the current
+     * log density.
+     * 
+     * @param epoch epoch index
+     * @return partial derivatives wrt c, K and theta of the epoch, in that
+     * order
+     */
+    public double[] getEpochGradient(int epoch) {
+        if (nEpochs == 1)
+            return getGradient();
+        return Arrays.copyOfRange(epochGradients, 3*epoch, 3*epoch+3);
+    }
+    
+    /**
+     * Attach a sink receiving the contribution of each interval and event
+     * whenever the density is evaluated. With no sink attached (the
+     * default) the event sequence is never walked for this purpose.
+     * 
+     * @param traceSink sink, or null to disable tracing
+     */
+    public void setTraceSink(SeedbankTraceSink traceSink) {
+        this.traceSink = traceSink;
+    }
+    
+    /**
+     * @return buffer holding the contributions of recent evaluations when
+     * debugLogging is set, or null otherwise
+     */
+    public SeedbankTraceBuffer getDebugTrace() {
+        return debugTrace;
+    }
+    
+    /**
+     * Pass the contribution of each interval and event to the trace sink.
+     */
+    private void traceContributions() {
+        
+        // Sequence may still hold events replaced since a restore:
+        updateEventSequence();
+        
+        int epoch = 0;
+        double nextEpochTime = nEpochs > 1
+                ? model.getEpochStartTime(1) : Double.POSITIVE_INFINITY;
+        double theta = model.getPopSize(1, epoch);
+        double m_ad = model.getBackwardRate(1, 0, epoch);
+        double m_da = model.getBackwardRate(0, 1, epoch);
+        
         // Note that the first event is always a sample. We begin at the first
         // _interval_ and the event following that interval.
-        for (int eventIdx = 1; eventIdx<eventList.size(); eventIdx++) {
-
-            SBEvent event = eventList.get(eventIdx);
-            Integer[] lineageCount = lineageCountList.get(eventIdx);
-            double delta_t = event.time-eventList.get(eventIdx-1).time;
-
+        SeedbankEventSweep.Cursor cursor = eventSweep.cursor();
+        cursor.next();
+        while (cursor.next()) {
+            
+            double time = cursor.getTime();
+            double startTime = cursor.getIntervalStartTime();
+            int k_a = cursor.getActiveCount();
+            int k_d = cursor.getDormantCount();
+            
+            // Epoch boundaries split the interval:
+            while (nextEpochTime <= time) {
+                double delta_t = nextEpochTime-startTime;
+                if (delta_t>0) {
+                    double lambda = k_a*(k_a-1)/(2.0*theta) + k_a*m_ad + k_d*m_da;
+                    traceSink.recordInterval(nextEpochTime, delta_t, k_a, k_d, -delta_t*lambda);
+                    startTime = nextEpochTime;
+                }
+                
+                epoch += 1;
+                nextEpochTime = epoch + 1 < nEpochs
+                        ? model.getEpochStartTime(epoch + 1) : Double.POSITIVE_INFINITY;
+                theta = model.getPopSize(1, epoch);
+                m_ad = model.getBackwardRate(1, 0, epoch);
+                m_da = model.getBackwardRate(0, 1, epoch);
+            }
+            
             // Interval contribution:
+            double delta_t = time-startTime;
             if (delta_t>0) {
-                double lambda = 0.0;
-                double theta = transitionModel.getPopSize(1);
-                int k_a = lineageCount[1];
-                int k_d = lineageCount[0];
-                double m_ad = transitionModel.getBackwardRate(1, 0);
-                double m_da = transitionModel.getBackwardRate(0, 1);
-                
-                
-                lambda += k_a*(k_a-1)/(2.0*theta);
-                lambda += k_a*m_ad;
-                lambda += k_d*m_da;
-                		
-                logP += -delta_t*lambda;
-                
-                if (debugLogging) {
-                	System.out.println("TIME CONTRIBUTION");
-                	System.out.println(String.format("Interval: %f\nlogP: %f\n", delta_t, -delta_t*lambda));
-                }
+                double lambda = k_a*(k_a-1)/(2.0*theta) + k_a*m_ad + k_d*m_da;
+                traceSink.recordInterval(time, delta_t, k_a, k_d, -delta_t*lambda);
             }
-
+            
             // Event contribution:
-            switch (event.kind) {
-                case COALESCE:
-                	double theta = transitionModel.getPopSize(1);
-                    logP += Math.log(1.0/theta);
-                    
-                    if (debugLogging) {
-                    	System.out.print("COALESCE EVENT: ");
-                        System.out.println(String.format("logP: %f", Math.log(1.0/theta)));
-                    }
-
+            int type = cursor.getType();
+            switch (cursor.getKind()) {
+                case SeedbankEventSweep.COALESCE:
+                    traceSink.recordEvent(time, SeedbankTraceSink.COALESCE, type,
+                            Math.log(1.0/theta));
                     break;
-
-                case MIGRATE:
-                    double m = transitionModel
-                            .getBackwardRate(event.type, event.destType);
-                    logP += Math.log(m);
                     
-                    if (debugLogging) {
-                    	System.out.print(String.format("MIGRATE EVENT: %d to %d", event.type, event.destType));
-                        System.out.println(String.format("logP: %f", Math.log(m)));
-                    }
-
+                case SeedbankEventSweep.MIGRATE:
+                    traceSink.recordEvent(time, SeedbankTraceSink.MIGRATE, type,
+                            Math.log(type == 1 ? m_ad : m_da));
                     break;
-
-                case SAMPLE:
-                    // Do nothing here: only effect of sampling event is
-                    // to change the lineage counts in subsequent intervals.
-                	
-                	if (debugLogging) {
-                		System.out.print("SAMPLE: ");
-                        System.out.println("logP: 0");
-                	}
-                	
+                    
+                case SeedbankEventSweep.SAMPLE:
+                    traceSink.recordEvent(time, SeedbankTraceSink.SAMPLE, type, 0.0);
                     break;
             }
-            
-            if (debugLogging) {
-        		System.out.println("\nTotal logP: " + logP);
-        		System.out.println("---");
-        	}
         }
         
-        return logP;
+        traceSink.recordTotal(logP);
     }
-
+    
     /**
-     * Determines the sequence of migration, coalescence and sampling events
-     * which make up the seedbank tree.
+     * Ensures the sequence of migration, coalescence and sampling events
+     * matches the current state of the seedbank tree.
      */
     protected void updateEventSequence() {
+        eventSweep.update();
+    }
 
-        // Clean up previous list:
-        eventList.clear();
-        lineageCountList.clear();
-        Node rootNode = sbTree.getRoot();
-
-        // Initialise map of active nodes to active change indices:
-        Map<Node, Integer> changeIdx = new HashMap<>();
-        changeIdx.put(rootNode, -1);
-
-        // Initialise lineage count:
-        Integer[] lineageCount = new Integer[2];
-        lineageCount[0] = ((SeedbankNode)rootNode).getNodeType() == 0 ? 1 : 0;
-        lineageCount[1] = ((SeedbankNode)rootNode).getNodeType() == 1 ? 1 : 0;
-
-        // Calculate event sequence:
-        while (!changeIdx.isEmpty()) {
-
-            SBEvent nextEvent = new SBEvent();
-            nextEvent.time = Double.NEGATIVE_INFINITY;
-            nextEvent.node = rootNode; // Initial assignment not significant
-
-            // Determine next event
-            for (Node node : changeIdx.keySet())
-                if (changeIdx.get(node)<0) {
-                    if (node.isLeaf()) {
-                        // Next event is a sample
-                        if (node.getHeight()>nextEvent.time) {
-                            nextEvent.time = node.getHeight();
-                            nextEvent.kind = SBEventKind.SAMPLE;
-                            nextEvent.type = ((SeedbankNode)node).getNodeType();
-                            nextEvent.node = node;
-                        }
-                    } else {
-                        // Next event is a coalescence
-                        if (node.getHeight()>nextEvent.time) {
-                            nextEvent.time = node.getHeight();
-                            nextEvent.kind = SBEventKind.COALESCE;
-                            nextEvent.type = ((SeedbankNode)node).getNodeType();
-                            nextEvent.node = node;
-                        }
-                    }
-                } else {
-                    // Next event is a migration
-                    double thisChangeTime = ((SeedbankNode)node).getChangeTime(changeIdx.get(node));
-                    if (thisChangeTime>nextEvent.time) {
-                        nextEvent.time = thisChangeTime;
-                        nextEvent.kind = SBEventKind.MIGRATE;
-                        nextEvent.destType = ((SeedbankNode)node).getChangeType(changeIdx.get(node));
-                        if (changeIdx.get(node)>0)
-                            nextEvent.type = ((SeedbankNode)node).getChangeType(changeIdx.get(node)-1);
-                        else
-                            nextEvent.type = ((SeedbankNode)node).getNodeType();
-                        nextEvent.node = node;
-                    }
-                }
-
-            // Update active node list (changeIdx) and lineage count appropriately:
-            switch (nextEvent.kind) {
-                case COALESCE:
-                    Node leftChild = nextEvent.node.getLeft();
-                    Node rightChild = nextEvent.node.getRight();
-
-                    changeIdx.remove(nextEvent.node);
-                    changeIdx.put(leftChild, ((SeedbankNode)leftChild).getChangeCount()-1);
-                    changeIdx.put(rightChild, ((SeedbankNode)rightChild).getChangeCount()-1);
-                    lineageCount[nextEvent.type]++;
-                    break;
-
-                case SAMPLE:
-                    changeIdx.remove(nextEvent.node);
-                    lineageCount[nextEvent.type]--;
-                    break;
-
-                case MIGRATE:
-                    lineageCount[nextEvent.destType]--;
-                    lineageCount[nextEvent.type]++;
-                    int oldIdx = changeIdx.get(nextEvent.node);
-                    changeIdx.put(nextEvent.node, oldIdx-1);
-                    break;
-            }
+    @Override
+    public boolean requiresRecalculation() {
+        return InputUtil.isDirty(sbTreeInput)
+                || InputUtil.isDirty(transitionModelInput);
+    }
 
-            // Add event to list:
-            eventList.add(nextEvent);
-            lineageCountList.add(Arrays.copyOf(lineageCount, lineageCount.length));
+    @Override
+    protected void store() {
+        storedPairTime = pairTime;
+        storedActiveTime = activeTime;
+        storedDormantTime = dormantTime;
+        storedCoalescenceCount = coalescenceCount;
+        storedDeactivationCount = deactivationCount;
+        storedActivationCount = activationCount;
+        storedStatisticsVersion = statisticsVersion;
+        System.arraycopy(gradient, 0, storedGradient, 0, gradient.length);
+        if (nEpochs > 1) {
+            System.arraycopy(epochStatistics, 0, storedEpochStatistics, 0, epochStatistics.length);
+            System.arraycopy(epochStartTimes, 0, storedEpochStartTimes, 0, nEpochs);
         }
 
-        // Reverse event and lineage count lists (order them from tips to root):
-        Collections.reverse(eventList);
-        Collections.reverse(lineageCountList);
-
+        super.store();
     }
 
     @Override
-    public boolean requiresRecalculation() {
-    	// Assumption that if any inputs change, there will be recalculation
-        return true;
+    protected void restore() {
+        pairTime = storedPairTime;
+        activeTime = storedActiveTime;
+        dormantTime = storedDormantTime;
+        coalescenceCount = storedCoalescenceCount;
+        deactivationCount = storedDeactivationCount;
+        activationCount = storedActivationCount;
+        statisticsVersion = storedStatisticsVersion;
+        double[] tmp = gradient;
+        gradient = storedGradient;
+        storedGradient = tmp;
+        if (nEpochs > 1) {
+            tmp = epochStatistics;
+            epochStatistics = storedEpochStatistics;
+            storedEpochStatistics = tmp;
+            tmp = epochStartTimes;
+            epochStartTimes = storedEpochStartTimes;
+            storedEpochStartTimes = tmp;
+            invalidateEpochTerms();
+        }
+
+        super.restore();
     }
 	
 	
@@ -276,8 +642,36 @@ public class SeedbankTreeDensity extends Distribution {
 		return null;
 	}
 
+	/**
+	 * Replace the seedbank tree with an independent draw from the seedbank
+	 * coalescent under the current transition model, keeping the types,
+	 * times, IDs and numbers of the sampled lineages. Simulation uses the
+	 * BEAST Randomizer, so the random argument is ignored.
+	 */
 	@Override
-	public void sample(State state, Random random) {	
+	public void sample(State state, Random random) {
+		if (sampledFlag)
+			return;
+		sampledFlag = true;
+		
+		// Cause transition model parameters to be sampled:
+		sampleConditions(state, random);
+		
+		List<Integer> leafTypes = new ArrayList<>();
+		List<String> leafNames = new ArrayList<>();
+		List<Double> leafTimes = new ArrayList<>();
+		for (int i = 0; i < sbTree.getLeafNodeCount(); i++) {
+			SeedbankNode leaf = (SeedbankNode)sbTree.getNode(i);
+			leafTypes.add(leaf.getNodeType());
+			leafNames.add(leaf.getID());
+			leafTimes.add(leaf.getHeight());
+		}
+		
+		SeedbankNode root = new SeedbankCoalescentSimulator(transitionModel, random)
+				.simulateTree(leafTypes, leafNames, leafTimes, false);
+		root.setParent(null);
+		sbTree.assignFromFragile(new SeedbankTree(root));
+		statisticsKnown = false;
 	}
 
 }
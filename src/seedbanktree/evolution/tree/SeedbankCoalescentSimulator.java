@@ -0,0 +1,373 @@
+package seedbanktree.evolution.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+
+/**
+ * Gillespie simulator for typed genealogies under the seedbank coalescent.
+ * Used both to produce starting trees and to draw exact samples from the
+ * seedbank tree prior.
+ */
+public class SeedbankCoalescentSimulator {
+
+    private final TransitionModel transitionModel;
+    private final Random random;
+    private boolean unitCoalescenceRate;
+    private int epoch;
+
+    private abstract class SBEvent {
+
+        double time;
+        int fromType, toType;
+
+    }
+
+    private class CoalescenceEvent extends SBEvent {
+
+        public CoalescenceEvent(int type, double time) {
+            this.fromType = type;
+            this.toType = type;
+            this.time = time;
+        }
+    }
+
+    private class MigrationEvent extends SBEvent {
+
+        public MigrationEvent(int fromType, int toType, double time) {
+            this.fromType = fromType;
+            this.toType = toType;
+            this.time = time;
+        }
+    }
+
+    private class NullEvent extends SBEvent {
+        public NullEvent() {
+            this.time = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    public SeedbankCoalescentSimulator(TransitionModel transitionModel) {
+        this(transitionModel, null);
+    }
+
+    /**
+     * @param transitionModel transition model to simulate under
+     * @param random source of random numbers, or null to use the beast RNG
+     */
+    public SeedbankCoalescentSimulator(TransitionModel transitionModel, Random random) {
+        this.transitionModel = transitionModel;
+        this.random = random;
+    }
+
+    /**
+     * Generates tree using the specified list of active leaf nodes using the
+     * seedbank coalescent.
+     *
+     * @param leafTypes types of sampled lineages
+     * @param leafNames IDs of sampled lineages
+     * @param leafTimes sampling times
+     * @param unitCoalescenceRate if true, pairs of active lineages coalesce
+     * at rate 1 rather than 1/theta
+     * @return Root node of generated tree.
+     */
+    public SeedbankNode simulateTree(List<Integer> leafTypes,
+            List<String> leafNames, List<Double> leafTimes,
+            boolean unitCoalescenceRate) {
+
+        this.unitCoalescenceRate = unitCoalescenceRate;
+        int nLeaves = leafTypes.size();
+
+        // Initialise node creation counter:
+        int nextNodeNr = 0;
+
+        // Initialise node lists:
+        List<List<SeedbankNode>> liveLineages = new ArrayList<>();
+        List<List<SeedbankNode>> waitingSamples = new ArrayList<>();
+        liveLineages.add(new ArrayList<>());
+        liveLineages.add(new ArrayList<>());
+        waitingSamples.add(new ArrayList<>());
+        waitingSamples.add(new ArrayList<>());
+
+        // Add samples to waitingSamples:
+        for (int l = 0; l < nLeaves; l++) {
+            SeedbankNode node = new SeedbankNode();
+            node.setNr(nextNodeNr);
+            node.setID(leafNames.get(l));
+            waitingSamples.get(leafTypes.get(l)).add(node);
+            node.setHeight(leafTimes.get(l));
+            node.setNodeType(leafTypes.get(l));
+
+            nextNodeNr++;
+        }
+
+        // Sort nodes in dead nodes lists in order of increasing age:
+        for (int i=0; i<2; i++) {
+            Collections.sort(waitingSamples.get(i),
+                (SeedbankNode node1, SeedbankNode node2) -> {
+                    double dt = node1.getHeight()-node2.getHeight();
+                    if (dt<0)
+                        return -1;
+                    if (dt>0)
+                        return 1;
+
+                    return 0;
+                });
+        }
+
+        // Allocate propensity lists:
+        List<Double> migrationProp = new ArrayList<>();
+        migrationProp.add(0.0);
+        migrationProp.add(0.0);
+        List<Double> coalesceProp = new ArrayList<>();
+        coalesceProp.add(0.0);
+        double t = 0.0;
+        epoch = 0;
+        double nextEpochTime = transitionModel.getEpochCount() > 1
+                ? transitionModel.getEpochStartTime(1) : Double.POSITIVE_INFINITY;
+
+        while (totalNodesRemaining(liveLineages)>1
+                || totalNodesRemaining(waitingSamples)>0) {
+
+            // Step 1: Calculate propensities.
+            double totalProp = updatePropensities(migrationProp, coalesceProp,
+                    liveLineages);
+
+            // Step 2: Determine next event.
+            SBEvent event = getNextEvent(migrationProp, coalesceProp,
+                    totalProp, t);
+
+            // Step 3: Handle activation of nodes:
+            SeedbankNode nextNode = null;
+            int nextNodeType = -1;
+            double nextTime = Double.POSITIVE_INFINITY;
+            for (int i=0; i<2; i++) {
+                if (waitingSamples.get(i).isEmpty())
+                    continue;
+
+                if (waitingSamples.get(i).get(0).getHeight()<nextTime) {
+                    nextNode = waitingSamples.get(i).get(0);
+                    nextTime = nextNode.getHeight();
+                    nextNodeType = i;
+                }
+            }
+            if (nextEpochTime < event.time && nextEpochTime <= nextTime) {
+                // Rates change at epoch boundary, so the drawn event is
+                // discarded (valid by memorylessness).
+                t = nextEpochTime;
+                epoch += 1;
+                nextEpochTime = epoch + 1 < transitionModel.getEpochCount()
+                        ? transitionModel.getEpochStartTime(epoch + 1) : Double.POSITIVE_INFINITY;
+                continue;
+            }
+            if (nextTime < event.time) {
+                t = nextTime;
+                liveLineages.get(nextNodeType).add(nextNode);
+                waitingSamples.get(nextNodeType).remove(0);
+                continue;
+            }
+
+            // Step 4: Place event on tree.
+            nextNodeNr = updateTree(liveLineages, event, nextNodeNr);
+
+            // Step 5: Keep track of time increment.
+            t = event.time;
+        }
+
+        // Return sole remaining live node as root:
+        for (List<SeedbankNode> nodeList : liveLineages)
+            if (!nodeList.isEmpty()) {
+                return nodeList.get(0);
+            }
+
+        // Should not fall through.
+        throw new RuntimeException("No live nodes remaining end of "
+                + "structured coalescent simulation!");
+    }
+
+    /**
+     * Obtain propensities (instantaneous reaction rates) for coalescence and
+     * migration events.
+     *
+     * @param migrationProp
+     * @param coalesceProp
+     * @param activeNodes
+     * @return Total reaction propensity.
+     */
+    private double updatePropensities(List<Double> migrationProp,
+            List<Double> coalesceProp, List<List<SeedbankNode>> liveNodes) {
+
+        double totalProp = 0.0;
+
+        double theta = unitCoalescenceRate ? 1.0 : transitionModel.getPopSize(1, epoch);
+        int k_a = liveNodes.get(1).size();
+        int k_d = liveNodes.get(0).size();
+        double m_ad = transitionModel.getBackwardRate(1, 0, epoch);
+        double m_da = transitionModel.getBackwardRate(0, 1, epoch);
+
+        coalesceProp.set(0, k_a * (k_a - 1) / (2.0 * theta));
+        totalProp += coalesceProp.get(0);
+
+        migrationProp.set(1, k_a * m_ad);
+        migrationProp.set(0, k_d * m_da);
+        totalProp += migrationProp.get(1);
+        totalProp += migrationProp.get(0);
+
+        return totalProp;
+
+    }
+
+    /**
+     * Calculate total number of live nodes remaining.
+     *
+     * @param liveNodes
+     * @return Number of live nodes remaining.
+     */
+    private int totalNodesRemaining(List<List<SeedbankNode>> liveNodes) {
+        return liveNodes.get(0).size() + liveNodes.get(1).size();
+    }
+
+    /**
+     * Obtain type and location of next reaction.
+     *
+     * @param migrateProp Current migration propensities.
+     * @param coalesceProp Current coalescence propensities.
+     * @param t Current time.
+     * @return Event object describing next event.
+     */
+    private SBEvent getNextEvent(List<Double> migrateProp,
+            List<Double> coalesceProp, double totalProp, double t) {
+        // Get time of next event:
+        if (totalProp>0.0)
+            t += nextExponential(totalProp);
+        else
+            return new NullEvent();
+
+        // Select event type:
+        double U = nextDouble() * totalProp;
+
+        if (U < coalesceProp.get(0)) 
+            return new CoalescenceEvent(1, t);
+        else
+            U -= coalesceProp.get(0);
+
+        if (U < migrateProp.get(0))
+            return new MigrationEvent(0, 1, t);
+        else
+            U -= migrateProp.get(0);
+
+        if (U < migrateProp.get(1))
+            return new MigrationEvent(1, 0, t);
+        else
+            U -= migrateProp.get(1);
+
+        // Should not fall through.
+        throw new RuntimeException("Structured coalescenct event selection error.");
+    }
+
+    /**
+     * Update tree with result of latest event.
+     *
+     * @param liveLineages
+     * @param event
+     * @param nextNodeNr Integer identifier of last node added to tree.
+     * @return Updated nextNodeNr.
+     */
+    private int updateTree(List<List<SeedbankNode>> liveLineages, SBEvent event,
+            int nextNodeNr) {
+
+        if (event instanceof CoalescenceEvent) {
+
+            // Randomly select node pair from active nodes:
+            SeedbankNode daughter = selectRandomNode(liveLineages.get(1));
+            SeedbankNode son = selectRandomSibling(liveLineages.get(1), daughter);
+
+            // Create new parent node with appropriate ID and time:
+            SeedbankNode parent = new SeedbankNode();
+            parent.setNr(nextNodeNr);
+            parent.setID(String.valueOf(nextNodeNr));
+            parent.setHeight(event.time);
+            nextNodeNr++;
+
+            // Connect new parent to children:
+            parent.setLeft(daughter);
+            parent.setRight(son);
+            son.setParent(parent);
+            daughter.setParent(parent);
+
+            // Ensure new parent is set to correct colour:
+            parent.setNodeType(event.fromType);
+
+            // Update activeNodes:
+            liveLineages.get(1).remove(son);
+            int idx = liveLineages.get(1).indexOf(daughter);
+            liveLineages.get(1).set(idx, parent);
+
+        } else {
+
+            // Randomly select node with chosen colour:
+            SeedbankNode migrator = selectRandomNode(liveLineages.get(event.fromType));
+
+            // Record colour change in change lists:
+            migrator.addChange(event.toType, event.time);
+
+            // Update activeNodes:
+            liveLineages.get(event.fromType).remove(migrator);
+            liveLineages.get(event.toType).add(migrator);
+
+        }
+
+        return nextNodeNr;
+
+    }
+
+    /**
+     * Select random node from list.
+     *
+     * @param nodeList
+     * @return A randomly selected node.
+     */
+    private SeedbankNode selectRandomNode(List<SeedbankNode> nodeList) {
+        return nodeList.get(nextInt(nodeList.size()));
+    }
+
+    /**
+     * Return random node from list, excluding given node.
+     *
+     * @param nodeList
+     * @param node
+     * @return Randomly selected node.
+     */
+    private SeedbankNode selectRandomSibling(List<SeedbankNode> nodeList, Node node) {
+
+        int n = nextInt(nodeList.size() - 1);
+        int idxToAvoid = nodeList.indexOf(node);
+        if (n >= idxToAvoid)
+            n++;
+
+        return nodeList.get(n);
+    }
+
+    /*
+     * Random numbers from the source given on construction, or from the
+     * beast RNG.
+     */
+
+    private double nextDouble() {
+        return random != null ? random.nextDouble() : Randomizer.nextDouble();
+    }
+
+    private int nextInt(int n) {
+        return random != null ? random.nextInt(n) : Randomizer.nextInt(n);
+    }
+
+    private double nextExponential(double rate) {
+        return random != null
+                ? -Math.log(1.0 - random.nextDouble())/rate : Randomizer.nextExponential(rate);
+    }
+
+}
@@ -0,0 +1,1019 @@
+package seedbanktree.evolution.tree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Columnar store for the sequence of sampling, coalescence and migration
+ * events making up a seedbank tree, ordered from tips to root, together
+ * with the lineage counts in the interval ending at each event.
+ *
+ * Running totals of the statistics on which the seedbank coalescent
+ * density depends (pairwise active lineage time, total active and dormant
+ * lineage time, and the numbers of coalescences and of type changes in
+ * each direction) are kept alongside each event, so that after a splice
+ * they only need to be recomputed from the splice point onwards.
+ *
+ * All columns are primitive arrays which are reused between updates and
+ * only grow when the number of events exceeds their capacity.
+ *
+ * When the number of events to be (re)computed reaches the parallel
+ * threshold, events are sorted with a fork/join merge sort and lineage
+ * counts and running statistics are obtained as parallel prefix sums.
+ *
+ * Each seedbank tree owns a single sweep (see SeedbankTree.getEventSweep())
+ * which is keyed on the tree's state version, so the density and any
+ * loggers reading it share one sweep per tree state. Events can be read
+ * either by index or through a Cursor.
+ */
+public class SeedbankEventSweep {
+
+    public static final byte SAMPLE = 0, COALESCE = 1, MIGRATE = 2;
+
+    /**
+     * Set of primitive event columns.
+     */
+    private static class EventColumns {
+        double[] times = new double[0];
+        byte[] kinds = new byte[0];
+        // Type of lineage immediately below the event
+        byte[] types = new byte[0];
+        int[] nodeNrs = new int[0];
+
+        /**
+         * Ensure columns can hold at least n events.
+         *
+         * @param n required capacity
+         * @param keep number of leading events whose values must be preserved
+         */
+        void ensureCapacity(int n, int keep) {
+            if (n <= times.length)
+                return;
+
+            int capacity = Math.max(n, times.length + times.length/2);
+            times = copyOf(times, capacity, keep);
+            kinds = copyOf(kinds, capacity, keep);
+            types = copyOf(types, capacity, keep);
+            nodeNrs = copyOf(nodeNrs, capacity, keep);
+        }
+
+        void copyEvent(int from, EventColumns dest, int to) {
+            dest.times[to] = times[from];
+            dest.kinds[to] = kinds[from];
+            dest.types[to] = types[from];
+            dest.nodeNrs[to] = nodeNrs[from];
+        }
+    }
+
+    private final SeedbankTree sbTree;
+
+    private final EventColumns events = new EventColumns();
+    private int[] activeCounts = new int[0], dormantCounts = new int[0];
+    private int eventCount;
+
+    // Running totals up to and including each event and the interval
+    // ending at it:
+    //   pairTimes: sum of k_a(k_a-1)/2 * dt,
+    //   activeTimes, dormantTimes: sum of k_a * dt and k_d * dt,
+    //   coalescenceCounts: number of coalescences,
+    //   deactivationCounts, activationCounts: number of active to dormant
+    //   and dormant to active changes (in the tips to root direction).
+    private double[] pairTimes = new double[0];
+    private double[] activeTimes = new double[0], dormantTimes = new double[0];
+    private int[] coalescenceCounts = new int[0];
+    private int[] deactivationCounts = new int[0], activationCounts = new int[0];
+    // Number of sampled or coalescent nodes of active type:
+    private int[] activeNodeCounts = new int[0];
+
+    // Scratch columns used when splicing dirty node events into the sequence:
+    private final EventColumns tailEvents = new EventColumns();
+    private final EventColumns newEvents = new EventColumns();
+
+    // Height of each node when its events were last added to the sequence,
+    // i.e. the earliest time at which any of its indexed events can occur.
+    private double[] indexedHeights;
+    private boolean[] isDirtyNode;
+    private boolean eventsKnown;
+    // Tree state version reflected by the current sequence, and the version
+    // to which the tree was last restored:
+    private long indexedVersion, restoredVersion;
+
+    // Nodes whose events have been replaced since the last call to store(),
+    // and nodes whose events must be replaced on the next update because
+    // the tree has since been restored.
+    private int[] touchedNodeNrs;
+    private int touchedCount;
+    private boolean[] isTouchedNode, isPendingNode;
+    private int pendingCount;
+    private boolean rebuiltSinceStore;
+
+    // Scratch space for the heap-driven merge of per-branch event runs:
+    // position of each lineage within its event run, number of child runs
+    // yet to be exhausted, and a binary heap of lineages keyed on time.
+    private int[] changeCursor, pendingChildren;
+    private int[] heapNodeNrs;
+    private double[] heapTimes;
+    private int heapSize;
+
+    // Scratch space for parallel rebuilds: start of each branch's run in
+    // the unordered event columns and the sorting permutation.
+    private int parallelThreshold = Integer.MAX_VALUE;
+    private int[] runOffsets;
+    private int[] sortOrder = new int[0], sortScratch = new int[0];
+
+    SeedbankEventSweep(SeedbankTree sbTree) {
+        this.sbTree = sbTree;
+        eventsKnown = false;
+    }
+
+    /**
+     * @param parallelThreshold minimum number of events for which sorting
+     * and accumulation of statistics are carried out in parallel
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    public double getTime(int idx) {
+        return events.times[idx];
+    }
+
+    public byte getKind(int idx) {
+        return events.kinds[idx];
+    }
+
+    /**
+     * @param idx event index
+     * @return type of lineage below event (for migrations, the destination
+     * type is the other type)
+     */
+    public int getType(int idx) {
+        return events.types[idx];
+    }
+
+    public int getNodeNr(int idx) {
+        return events.nodeNrs[idx];
+    }
+
+    /**
+     * @param idx event index
+     * @return number of active lineages in interval ending at event
+     */
+    public int getActiveCount(int idx) {
+        return activeCounts[idx];
+    }
+
+    /**
+     * @param idx event index
+     * @return number of dormant lineages in interval ending at event
+     */
+    public int getDormantCount(int idx) {
+        return dormantCounts[idx];
+    }
+
+    /**
+     * @return sum over intervals of k_a(k_a-1)/2 times interval length
+     */
+    public double getTotalPairTime() {
+        return eventCount > 0 ? pairTimes[eventCount-1] : 0.0;
+    }
+
+    /**
+     * @return total length of active lineages
+     */
+    public double getTotalActiveTime() {
+        return eventCount > 0 ? activeTimes[eventCount-1] : 0.0;
+    }
+
+    /**
+     * @return total length of dormant lineages
+     */
+    public double getTotalDormantTime() {
+        return eventCount > 0 ? dormantTimes[eventCount-1] : 0.0;
+    }
+
+    public int getCoalescenceCount() {
+        return eventCount > 0 ? coalescenceCounts[eventCount-1] : 0;
+    }
+
+    /**
+     * @return number of changes from active (below) to dormant (above)
+     */
+    public int getDeactivationCount() {
+        return eventCount > 0 ? deactivationCounts[eventCount-1] : 0;
+    }
+
+    /**
+     * @return number of changes from dormant (below) to active (above)
+     */
+    public int getActivationCount() {
+        return eventCount > 0 ? activationCounts[eventCount-1] : 0;
+    }
+
+    /**
+     * @return number of sampled and coalescent nodes of active type
+     */
+    public int getActiveNodeCount() {
+        return eventCount > 0 ? activeNodeCounts[eventCount-1] : 0;
+    }
+
+    /**
+     * @return number of sampled and coalescent nodes of dormant type
+     */
+    public int getDormantNodeCount() {
+        return sbTree.getNodeCount() - getActiveNodeCount();
+    }
+
+    /**
+     * @return new cursor positioned before the first event
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Forward-only view of the event sequence. A cursor is only valid until
+     * the next update() which modifies the sequence.
+     */
+    public class Cursor {
+        private int idx = -1;
+
+        /**
+         * Advance to the next event.
+         *
+         * @return false if there are no events left
+         */
+        public boolean next() {
+            if (idx >= eventCount)
+                return false;
+            idx += 1;
+            return idx < eventCount;
+        }
+
+        public int getIndex() {
+            return idx;
+        }
+
+        public double getTime() {
+            return events.times[idx];
+        }
+
+        /**
+         * @return start time of the interval ending at the current event
+         */
+        public double getIntervalStartTime() {
+            return events.times[idx > 0 ? idx-1 : 0];
+        }
+
+        public byte getKind() {
+            return events.kinds[idx];
+        }
+
+        public int getType() {
+            return events.types[idx];
+        }
+
+        public int getNodeNr() {
+            return events.nodeNrs[idx];
+        }
+
+        public int getActiveCount() {
+            return activeCounts[idx];
+        }
+
+        public int getDormantCount() {
+            return dormantCounts[idx];
+        }
+    }
+
+    /**
+     * Obtain the running statistics accumulated over all intervals and
+     * events strictly before the given time. The prefix columns make this
+     * a binary search rather than a traversal.
+     *
+     * @param time time
+     * @param dest array receiving, in order, pair time, active time,
+     * dormant time and the numbers of coalescences, deactivations and
+     * activations
+     */
+    public void getStatisticsBefore(double time, double[] dest) {
+
+        int lo = 0, hi = eventCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (events.times[mid] < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        if (lo == 0) {
+            Arrays.fill(dest, 0, 6, 0.0);
+            return;
+        }
+
+        int prevIdx = lo-1;
+        dest[0] = pairTimes[prevIdx];
+        dest[1] = activeTimes[prevIdx];
+        dest[2] = dormantTimes[prevIdx];
+        dest[3] = coalescenceCounts[prevIdx];
+        dest[4] = deactivationCounts[prevIdx];
+        dest[5] = activationCounts[prevIdx];
+
+        // Part of the interval containing time:
+        if (lo < eventCount) {
+            double dt = time - events.times[prevIdx];
+            int k_a = activeCounts[lo], k_d = dormantCounts[lo];
+            dest[0] += 0.5*k_a*(k_a-1)*dt;
+            dest[1] += k_a*dt;
+            dest[2] += k_d*dt;
+        }
+    }
+
+    /**
+     * Discard the current sequence, forcing a full rebuild on next update.
+     */
+    public void invalidate() {
+        eventsKnown = false;
+    }
+
+    /**
+     * Mark the current sequence as the one to return to on restore().
+     */
+    void store() {
+        for (int i = 0; i < touchedCount; i++)
+            isTouchedNode[touchedNodeNrs[i]] = false;
+        touchedCount = 0;
+        rebuiltSinceStore = false;
+    }
+
+    /**
+     * Called after the seedbank tree has been restored. Rather than keeping
+     * a copy of the stored sequence, events of nodes that have been replaced
+     * since store() are replaced again on the next update.
+     */
+    void restore() {
+        restoredVersion = sbTree.getStateVersion();
+        if (rebuiltSinceStore) {
+            invalidate();
+            return;
+        }
+
+        for (int i = 0; i < touchedCount; i++) {
+            int nr = touchedNodeNrs[i];
+            if (!isPendingNode[nr]) {
+                isPendingNode[nr] = true;
+                pendingCount += 1;
+            }
+        }
+    }
+
+    /**
+     * Ensures the event sequence matches the current state of the seedbank
+     * tree. Nothing is done if the sequence already reflects the current
+     * state version and no restored nodes are pending. Otherwise only events belonging to nodes marked dirty
+     * are replaced; the full sequence is rebuilt when no valid sequence
+     * exists, when most of it would be replaced anyway, or when the state
+     * has changed but the dirty flags describing the change have since
+     * been cleared.
+     */
+    public void update() {
+
+        int nodeCount = sbTree.getNodeCount();
+        if (!eventsKnown || indexedHeights.length != nodeCount) {
+            rebuild();
+            return;
+        }
+
+        // Already indexed, e.g. by another density sharing this sweep,
+        // whether or not the tree's dirty flags have been cleared since:
+        long version = sbTree.getStateVersion();
+        if (version == indexedVersion && pendingCount == 0)
+            return;
+
+        if (!sbTree.somethingIsDirty()) {
+            if (version != (pendingCount > 0 ? restoredVersion : indexedVersion)) {
+                rebuild();
+                return;
+            }
+            if (pendingCount == 0)
+                return;
+        }
+        indexedVersion = version;
+
+        // Identify dirty nodes and the earliest time affected by them:
+        double minTime = Double.POSITIVE_INFINITY;
+        int nNewEvents = 0;
+        heapSize = 0;
+        for (Node node : sbTree.getNodesAsArray()) {
+            int nr = node.getNr();
+            isDirtyNode[nr] = node.isDirty() != Tree.IS_CLEAN || isPendingNode[nr];
+
+            if (isDirtyNode[nr]) {
+                minTime = Math.min(minTime, Math.min(indexedHeights[nr], node.getHeight()));
+                nNewEvents += 1 + ((SeedbankNode)node).getChangeCount();
+
+                heapNodeNrs[heapSize] = nr;
+                heapTimes[heapSize] = node.getHeight();
+                heapSize += 1;
+
+                isPendingNode[nr] = false;
+                if (!isTouchedNode[nr]) {
+                    isTouchedNode[nr] = true;
+                    touchedNodeNrs[touchedCount++] = nr;
+                }
+            }
+        }
+        pendingCount = 0;
+
+        if (heapSize == 0)
+            return;
+
+        if (2*nNewEvents > eventCount) {
+            rebuild();
+            return;
+        }
+
+        // Order events of dirty nodes:
+        newEvents.ensureCapacity(nNewEvents, 0);
+        for (int i = 0; i < heapSize; i++) {
+            changeCursor[heapNodeNrs[i]] = -1;
+            indexedHeights[heapNodeNrs[i]] = heapTimes[i];
+        }
+        for (int i = heapSize/2 - 1; i >= 0; i--)
+            siftDown(i);
+        mergeRuns(newEvents, false);
+        minTime = Math.min(minTime, newEvents.times[0]);
+
+        // Locate splice point: first event which may belong to a dirty node.
+        int lo = 0, hi = eventCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (events.times[mid] < minTime)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int spliceIdx = lo;
+
+        // Move tail of sequence aside and merge its clean events with the
+        // new events:
+        int tailCount = eventCount - spliceIdx;
+        tailEvents.ensureCapacity(tailCount, 0);
+        for (int i = 0; i < tailCount; i++)
+            events.copyEvent(spliceIdx + i, tailEvents, i);
+
+        ensureCapacity(spliceIdx + tailCount + nNewEvents, spliceIdx);
+
+        int idx = spliceIdx, newIdx = 0;
+        for (int i = 0; i < tailCount; i++) {
+            if (isDirtyNode[tailEvents.nodeNrs[i]])
+                continue;
+
+            while (newIdx < nNewEvents && newEvents.times[newIdx] < tailEvents.times[i])
+                newEvents.copyEvent(newIdx++, events, idx++);
+            tailEvents.copyEvent(i, events, idx++);
+        }
+        while (newIdx < nNewEvents)
+            newEvents.copyEvent(newIdx++, events, idx++);
+        eventCount = idx;
+
+        // Fix lineage counts and statistics from the splice point onwards:
+        updateLineageCounts(spliceIdx);
+    }
+
+    /**
+     * Determines the sequence of migration, coalescence and sampling events
+     * which make up the seedbank tree from scratch.
+     *
+     * Each branch contributes a time-ordered run of events (the event at
+     * its base node followed by its type changes), so the sequence is
+     * obtained as a k-way merge of these runs driven by a binary heap of
+     * lineages keyed on the time of their next event. A parent lineage
+     * joins the heap once both child runs are exhausted.
+     */
+    private void rebuild() {
+
+        int nodeCount = sbTree.getNodeCount();
+        if (indexedHeights == null || indexedHeights.length != nodeCount) {
+            indexedHeights = new double[nodeCount];
+            isDirtyNode = new boolean[nodeCount];
+            changeCursor = new int[nodeCount];
+            pendingChildren = new int[nodeCount];
+            heapNodeNrs = new int[nodeCount];
+            heapTimes = new double[nodeCount];
+            touchedNodeNrs = new int[nodeCount];
+            isTouchedNode = new boolean[nodeCount];
+            isPendingNode = new boolean[nodeCount];
+        }
+
+        // Every event is replaced, so no node needs individual attention:
+        store();
+        Arrays.fill(isPendingNode, false);
+        pendingCount = 0;
+        rebuiltSinceStore = true;
+
+        // Initialise heap with all sampled lineages:
+        int nEvents = 0;
+        heapSize = 0;
+        for (Node node : sbTree.getNodesAsArray()) {
+            int nr = node.getNr();
+            indexedHeights[nr] = node.getHeight();
+            changeCursor[nr] = -1;
+            pendingChildren[nr] = node.getChildCount();
+            nEvents += 1 + ((SeedbankNode)node).getChangeCount();
+
+            if (node.isLeaf()) {
+                heapNodeNrs[heapSize] = nr;
+                heapTimes[heapSize] = node.getHeight();
+                heapSize += 1;
+            }
+        }
+        for (int i = heapSize/2 - 1; i >= 0; i--)
+            siftDown(i);
+
+        ensureCapacity(nEvents, 0);
+        if (nEvents >= parallelThreshold) {
+            heapSize = 0;
+            eventCount = sortRunsInParallel(nEvents);
+        } else
+            eventCount = mergeRuns(events, true);
+        updateLineageCounts(0);
+
+        indexedVersion = sbTree.getStateVersion();
+        eventsKnown = true;
+    }
+
+    /**
+     * Merge the event runs of the lineages currently on the heap into
+     * time order.
+     *
+     * @param dest columns to write events to, starting at index 0
+     * @param activateParents if true, a parent lineage is added to the heap
+     * once both of its child runs are exhausted
+     * @return number of events written
+     */
+    private int mergeRuns(EventColumns dest, boolean activateParents) {
+
+        int nEvents = 0;
+        while (heapSize > 0) {
+            int nr = heapNodeNrs[0];
+            SeedbankNode node = (SeedbankNode)sbTree.getNode(nr);
+
+            dest.times[nEvents] = heapTimes[0];
+            dest.nodeNrs[nEvents] = nr;
+            int cursor = changeCursor[nr];
+            if (cursor < 0) {
+                dest.kinds[nEvents] = node.isLeaf() ? SAMPLE : COALESCE;
+                dest.types[nEvents] = (byte)node.getNodeType();
+            } else {
+                dest.kinds[nEvents] = MIGRATE;
+                dest.types[nEvents] = (byte)(cursor > 0
+                        ? node.getChangeType(cursor-1) : node.getNodeType());
+            }
+            nEvents += 1;
+
+            // Advance lineage to its next event:
+            cursor += 1;
+            changeCursor[nr] = cursor;
+            if (cursor < node.getChangeCount()) {
+                heapTimes[0] = node.getChangeTime(cursor);
+                siftDown(0);
+                continue;
+            }
+
+            // Lineage run exhausted: remove it and activate parent if ready.
+            heapSize -= 1;
+            heapNodeNrs[0] = heapNodeNrs[heapSize];
+            heapTimes[0] = heapTimes[heapSize];
+            siftDown(0);
+
+            Node parent = node.getParent();
+            if (activateParents && parent != null) {
+                int parentNr = parent.getNr();
+                pendingChildren[parentNr] -= 1;
+                if (pendingChildren[parentNr] == 0) {
+                    heapNodeNrs[heapSize] = parentNr;
+                    heapTimes[heapSize] = parent.getHeight();
+                    heapSize += 1;
+                    siftUp(heapSize-1);
+                }
+            }
+        }
+
+        return nEvents;
+    }
+
+    /**
+     * Alternative to the heap-driven merge for very large trees: the event
+     * runs of all branches are written out concurrently and then ordered
+     * using a fork/join merge sort.
+     *
+     * @param nEvents total number of events in the tree
+     * @return number of events written
+     */
+    private int sortRunsInParallel(int nEvents) {
+
+        Node[] nodes = sbTree.getNodesAsArray();
+        if (runOffsets == null || runOffsets.length != nodes.length)
+            runOffsets = new int[nodes.length];
+
+        int offset = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            runOffsets[i] = offset;
+            offset += 1 + ((SeedbankNode)nodes[i]).getChangeCount();
+        }
+
+        tailEvents.ensureCapacity(nEvents, 0);
+        IntStream.range(0, nodes.length).parallel().forEach(
+                i -> writeRun((SeedbankNode)nodes[i], tailEvents, runOffsets[i]));
+
+        if (sortOrder.length < nEvents) {
+            sortOrder = new int[tailEvents.times.length];
+            sortScratch = new int[tailEvents.times.length];
+        }
+        for (int i = 0; i < nEvents; i++)
+            sortOrder[i] = i;
+        ForkJoinPool.commonPool().invoke(new IndexSortTask(tailEvents.times,
+                sortOrder, sortScratch, 0, nEvents));
+
+        IntStream.range(0, nEvents).parallel().forEach(
+                i -> tailEvents.copyEvent(sortOrder[i], events, i));
+
+        return nEvents;
+    }
+
+    /**
+     * Write the events of a single branch in time order.
+     *
+     * @param node node at base of branch
+     * @param dest columns to write events to
+     * @param start index of first event
+     */
+    private static void writeRun(SeedbankNode node, EventColumns dest, int start) {
+        int nr = node.getNr();
+
+        dest.times[start] = node.getHeight();
+        dest.kinds[start] = node.isLeaf() ? SAMPLE : COALESCE;
+        dest.types[start] = (byte)node.getNodeType();
+        dest.nodeNrs[start] = nr;
+
+        for (int c = 0; c < node.getChangeCount(); c++) {
+            int idx = start + 1 + c;
+            dest.times[idx] = node.getChangeTime(c);
+            dest.kinds[idx] = MIGRATE;
+            dest.types[idx] = (byte)(c > 0 ? node.getChangeType(c-1) : node.getNodeType());
+            dest.nodeNrs[idx] = nr;
+        }
+    }
+
+    /**
+     * Recompute lineage counts and running statistics for all events from
+     * startIdx onwards, given that the values of earlier events are already
+     * correct.
+     *
+     * @param startIdx index of first event whose counts need updating
+     */
+    private void updateLineageCounts(int startIdx) {
+
+        if (eventCount - startIdx >= parallelThreshold) {
+            updateLineageCountsInParallel(startIdx);
+            return;
+        }
+
+        int k_a = 0, k_d = 0;
+        double pairTime = 0.0, activeTime = 0.0, dormantTime = 0.0;
+        int nCoal = 0, nDeactivations = 0, nActivations = 0, nActiveNodes = 0;
+        if (startIdx > 0) {
+            int prevIdx = startIdx-1;
+            k_a = activeCounts[prevIdx];
+            k_d = dormantCounts[prevIdx];
+            pairTime = pairTimes[prevIdx];
+            activeTime = activeTimes[prevIdx];
+            dormantTime = dormantTimes[prevIdx];
+            nCoal = coalescenceCounts[prevIdx];
+            nDeactivations = deactivationCounts[prevIdx];
+            nActivations = activationCounts[prevIdx];
+            nActiveNodes = activeNodeCounts[prevIdx];
+        }
+
+        for (int i = Math.max(startIdx-1, 0); i < eventCount; i++) {
+            if (i >= startIdx) {
+                activeCounts[i] = k_a;
+                dormantCounts[i] = k_d;
+
+                // Interval contribution:
+                double dt = events.times[i] - events.times[i-1 < 0 ? 0 : i-1];
+                pairTime += 0.5*k_a*(k_a-1)*dt;
+                activeTime += k_a*dt;
+                dormantTime += k_d*dt;
+            }
+
+            // Update counts to reflect passage (tips to root) of event:
+            boolean active = events.types[i] == 1;
+            switch (events.kinds[i]) {
+                case SAMPLE:
+                    if (active) k_a++; else k_d++;
+                    if (active && i >= startIdx)
+                        nActiveNodes += 1;
+                    break;
+
+                case COALESCE:
+                    if (active) k_a--; else k_d--;
+                    if (i >= startIdx) {
+                        nCoal += 1;
+                        if (active)
+                            nActiveNodes += 1;
+                    }
+                    break;
+
+                case MIGRATE:
+                    if (active) {
+                        k_a--;
+                        k_d++;
+                        if (i >= startIdx)
+                            nDeactivations += 1;
+                    } else {
+                        k_d--;
+                        k_a++;
+                        if (i >= startIdx)
+                            nActivations += 1;
+                    }
+                    break;
+            }
+
+            if (i >= startIdx) {
+                pairTimes[i] = pairTime;
+                activeTimes[i] = activeTime;
+                dormantTimes[i] = dormantTime;
+                coalescenceCounts[i] = nCoal;
+                deactivationCounts[i] = nDeactivations;
+                activationCounts[i] = nActivations;
+                activeNodeCounts[i] = nActiveNodes;
+            }
+        }
+    }
+
+    /**
+     * Parallel version of updateLineageCounts(). Lineage counts are
+     * exclusive prefix sums of the count changes caused by each event, and
+     * the running statistics are prefix sums of the contributions of each
+     * event and the interval ending at it.
+     *
+     * @param startIdx index of first event whose counts need updating
+     */
+    private void updateLineageCountsInParallel(int startIdx) {
+
+        if (startIdx >= eventCount)
+            return;
+
+        if (startIdx > 0) {
+            int prevIdx = startIdx-1;
+            activeCounts[startIdx] = activeCounts[prevIdx] + activeChange(prevIdx);
+            dormantCounts[startIdx] = dormantCounts[prevIdx] + dormantChange(prevIdx);
+        } else {
+            activeCounts[0] = 0;
+            dormantCounts[0] = 0;
+        }
+        IntStream.range(startIdx+1, eventCount).parallel().forEach(i -> {
+            activeCounts[i] = activeChange(i-1);
+            dormantCounts[i] = dormantChange(i-1);
+        });
+        Arrays.parallelPrefix(activeCounts, startIdx, eventCount, Integer::sum);
+        Arrays.parallelPrefix(dormantCounts, startIdx, eventCount, Integer::sum);
+
+        IntStream.range(startIdx, eventCount).parallel().forEach(i -> {
+            int k_a = activeCounts[i], k_d = dormantCounts[i];
+            double dt = i > 0 ? events.times[i] - events.times[i-1] : 0.0;
+            pairTimes[i] = 0.5*k_a*(k_a-1)*dt;
+            activeTimes[i] = k_a*dt;
+            dormantTimes[i] = k_d*dt;
+
+            boolean migrate = events.kinds[i] == MIGRATE;
+            boolean active = events.types[i] == 1;
+            coalescenceCounts[i] = events.kinds[i] == COALESCE ? 1 : 0;
+            deactivationCounts[i] = migrate && active ? 1 : 0;
+            activationCounts[i] = migrate && !active ? 1 : 0;
+            activeNodeCounts[i] = !migrate && active ? 1 : 0;
+        });
+
+        if (startIdx > 0) {
+            int prevIdx = startIdx-1;
+            pairTimes[startIdx] += pairTimes[prevIdx];
+            activeTimes[startIdx] += activeTimes[prevIdx];
+            dormantTimes[startIdx] += dormantTimes[prevIdx];
+            coalescenceCounts[startIdx] += coalescenceCounts[prevIdx];
+            deactivationCounts[startIdx] += deactivationCounts[prevIdx];
+            activationCounts[startIdx] += activationCounts[prevIdx];
+            activeNodeCounts[startIdx] += activeNodeCounts[prevIdx];
+        }
+        Arrays.parallelPrefix(pairTimes, startIdx, eventCount, Double::sum);
+        Arrays.parallelPrefix(activeTimes, startIdx, eventCount, Double::sum);
+        Arrays.parallelPrefix(dormantTimes, startIdx, eventCount, Double::sum);
+        Arrays.parallelPrefix(coalescenceCounts, startIdx, eventCount, Integer::sum);
+        Arrays.parallelPrefix(deactivationCounts, startIdx, eventCount, Integer::sum);
+        Arrays.parallelPrefix(activationCounts, startIdx, eventCount, Integer::sum);
+        Arrays.parallelPrefix(activeNodeCounts, startIdx, eventCount, Integer::sum);
+    }
+
+    /**
+     * @param idx event index
+     * @return change in number of active lineages caused by event
+     */
+    private int activeChange(int idx) {
+        boolean active = events.types[idx] == 1;
+        switch (events.kinds[idx]) {
+            case SAMPLE:
+                return active ? 1 : 0;
+            case COALESCE:
+                return active ? -1 : 0;
+            default:
+                return active ? -1 : 1;
+        }
+    }
+
+    /**
+     * @param idx event index
+     * @return change in number of dormant lineages caused by event
+     */
+    private int dormantChange(int idx) {
+        boolean active = events.types[idx] == 1;
+        switch (events.kinds[idx]) {
+            case SAMPLE:
+                return active ? 0 : 1;
+            case COALESCE:
+                return active ? 0 : -1;
+            default:
+                return active ? 1 : -1;
+        }
+    }
+
+    /**
+     * Stable fork/join merge sort of a range of event indices by time.
+     */
+    private static class IndexSortTask extends RecursiveAction {
+
+        private static final int SEQUENTIAL_SIZE = 1 << 13, INSERTION_SIZE = 32;
+
+        private final double[] times;
+        private final int[] order, scratch;
+        private final int from, to;
+
+        IndexSortTask(double[] times, int[] order, int[] scratch, int from, int to) {
+            this.times = times;
+            this.order = order;
+            this.scratch = scratch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_SIZE) {
+                sort(from, to);
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new IndexSortTask(times, order, scratch, from, mid),
+                    new IndexSortTask(times, order, scratch, mid, to));
+            merge(from, mid, to);
+        }
+
+        private void sort(int lo, int hi) {
+            if (hi - lo <= INSERTION_SIZE) {
+                for (int i = lo + 1; i < hi; i++) {
+                    int idx = order[i];
+                    int j = i;
+                    while (j > lo && times[order[j-1]] > times[idx]) {
+                        order[j] = order[j-1];
+                        j -= 1;
+                    }
+                    order[j] = idx;
+                }
+                return;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            sort(lo, mid);
+            sort(mid, hi);
+            merge(lo, mid, hi);
+        }
+
+        private void merge(int lo, int mid, int hi) {
+            if (!(times[order[mid]] < times[order[mid-1]]))
+                return;
+
+            System.arraycopy(order, lo, scratch, lo, hi - lo);
+            int i = lo, j = mid, k = lo;
+            while (i < mid && j < hi)
+                order[k++] = times[scratch[j]] < times[scratch[i]] ? scratch[j++] : scratch[i++];
+            while (i < mid)
+                order[k++] = scratch[i++];
+            while (j < hi)
+                order[k++] = scratch[j++];
+        }
+    }
+
+    /**
+     * Ensure event, lineage count and statistic columns can hold at least
+     * n events.
+     *
+     * @param n required capacity
+     * @param keep number of leading events whose values must be preserved
+     */
+    private void ensureCapacity(int n, int keep) {
+        events.ensureCapacity(n, keep);
+        int capacity = events.times.length;
+        if (activeCounts.length < capacity) {
+            activeCounts = copyOf(activeCounts, capacity, keep);
+            dormantCounts = copyOf(dormantCounts, capacity, keep);
+            pairTimes = copyOf(pairTimes, capacity, keep);
+            activeTimes = copyOf(activeTimes, capacity, keep);
+            dormantTimes = copyOf(dormantTimes, capacity, keep);
+            coalescenceCounts = copyOf(coalescenceCounts, capacity, keep);
+            deactivationCounts = copyOf(deactivationCounts, capacity, keep);
+            activationCounts = copyOf(activationCounts, capacity, keep);
+            activeNodeCounts = copyOf(activeNodeCounts, capacity, keep);
+        }
+    }
+
+    /**
+     * Restore heap order below heap position i.
+     *
+     * @param i heap position
+     */
+    private void siftDown(int i) {
+        int nr = heapNodeNrs[i];
+        double time = heapTimes[i];
+
+        while (true) {
+            int child = 2*i + 1;
+            if (child >= heapSize)
+                break;
+
+            if (child + 1 < heapSize && heapTimes[child+1] < heapTimes[child])
+                child += 1;
+
+            if (!(heapTimes[child] < time))
+                break;
+
+            heapNodeNrs[i] = heapNodeNrs[child];
+            heapTimes[i] = heapTimes[child];
+            i = child;
+        }
+
+        heapNodeNrs[i] = nr;
+        heapTimes[i] = time;
+    }
+
+    /**
+     * Restore heap order above heap position i.
+     *
+     * @param i heap position
+     */
+    private void siftUp(int i) {
+        int nr = heapNodeNrs[i];
+        double time = heapTimes[i];
+
+        while (i > 0) {
+            int parent = (i - 1)/2;
+            if (!(time < heapTimes[parent]))
+                break;
+
+            heapNodeNrs[i] = heapNodeNrs[parent];
+            heapTimes[i] = heapTimes[parent];
+            i = parent;
+        }
+
+        heapNodeNrs[i] = nr;
+        heapTimes[i] = time;
+    }
+
+    private static double[] copyOf(double[] array, int length, int keep) {
+        double[] newArray = new double[length];
+        System.arraycopy(array, 0, newArray, 0, Math.min(keep, array.length));
+        return newArray;
+    }
+
+    private static byte[] copyOf(byte[] array, int length, int keep) {
+        byte[] newArray = new byte[length];
+        System.arraycopy(array, 0, newArray, 0, Math.min(keep, array.length));
+        return newArray;
+    }
+
+    private static int[] copyOf(int[] array, int length, int keep) {
+        int[] newArray = new int[length];
+        System.arraycopy(array, 0, newArray, 0, Math.min(keep, array.length));
+        return newArray;
+    }
+}
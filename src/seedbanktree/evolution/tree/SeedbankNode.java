@@ -5,6 +5,7 @@ import java.util.List;
 
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
 
 @Description("A node in a seedbank tree.")
 public class SeedbankNode extends Node {
@@ -60,6 +61,7 @@ public class SeedbankNode extends Node {
     	}
     	
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
         this.nodeType = nodeType;
     }
     
@@ -68,6 +70,7 @@ public class SeedbankNode extends Node {
     	// TODO: Verify that type change is valid? (actually a type change)
     	// TODO: Verify that change time added is actually in between times?
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
         changeTypes.add(newType);
         changeTimes.add(time);
         nTypeChanges += 1;
@@ -76,6 +79,7 @@ public class SeedbankNode extends Node {
     // Remove type changes
     public void clearChanges() {
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
         changeTypes.clear();
         changeTimes.clear();
         nTypeChanges = 0;
@@ -84,18 +88,21 @@ public class SeedbankNode extends Node {
     // Change time of type change
     public void setChangeTime(int idx, double newTime) {
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
         changeTimes.set(idx, newTime);
     }
     
     // Change destination of type change
     public void setChangeType(int idx, int newType) {
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
         changeTypes.set(idx, newType);
     }
 
     // Truncates changes
     public void truncateChanges(int newNChanges) {
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
 
         while (nTypeChanges>newNChanges) {
             changeTypes.remove(nTypeChanges-1);
@@ -107,6 +114,7 @@ public class SeedbankNode extends Node {
     // Insert a new change at index idx
     public void insertChange(int idx, int newType, double newTime) {
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
 
         if (idx>nTypeChanges)
             throw new IllegalArgumentException("Index to insertChange() out of range.");
@@ -119,6 +127,7 @@ public class SeedbankNode extends Node {
     // Remove change
     public void removeChange(int idx) {
         startEditing();
+        makeDirty(Tree.IS_DIRTY);
 
         if (idx>=nTypeChanges)
             throw new IllegalArgumentException("Index to removeChange() out of range.");
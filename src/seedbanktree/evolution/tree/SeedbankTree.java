@@ -11,6 +11,7 @@ import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
+import beast.base.inference.Operator;
 import beast.base.inference.StateNode;
 import beast.base.inference.StateNodeInitialiser;
 
@@ -33,6 +34,27 @@ public class SeedbankTree extends Tree {
 	protected TraitSet typeTraitSet;
 	protected String activeTypeName;
 	protected String dormantTypeName;
+
+	// Changed to a previously unused value whenever the tree is edited or
+	// replaced, and restored together with the tree, so that derived
+	// quantities can be keyed on it.
+	protected long stateVersion, storedStateVersion;
+	private long lastStateVersion;
+	protected SeedbankEventSweep eventSweep;
+
+	// Cached outcome of validity checks on each node and the branch above
+	// it, together with the state version it describes:
+	private boolean[] nodeIsValid, storedNodeIsValid;
+	private int invalidNodeCount, storedInvalidNodeCount;
+	private boolean validityKnown, storedValidityKnown;
+	private long validityVersion, storedValidityVersion;
+
+	// Cached transition probabilities P(L)_ij of each branch, four per node
+	// stored row by row, keyed on the transition rate version and the
+	// branch length they were computed for:
+	private double[] branchProbs, storedBranchProbs;
+	private double[] branchProbLengths, storedBranchProbLengths;
+	private long[] branchProbVersions, storedBranchProbVersions;
 	
 	// Constructors
 	// Default constructor for beast use
@@ -225,6 +247,81 @@ public class SeedbankTree extends Tree {
         m_storedNodes = new SeedbankNode[nodeCount];
         Node copy = root.copy();
         listNodes((SeedbankNode)copy, (SeedbankNode[])m_storedNodes);
+        replaced();
+    }
+
+    /**
+     * Record that the whole tree has been replaced, rather than edited by
+     * an operator.
+     */
+    private void replaced() {
+        stateVersion = ++lastStateVersion;
+        validityKnown = false;
+        if (eventSweep != null)
+            eventSweep.invalidate();
+    }
+
+    /**
+     * @return number identifying the current state of the tree. It changes
+     * whenever the tree is edited or replaced and reverts when the tree is
+     * restored.
+     */
+    public long getStateVersion() {
+        return stateVersion;
+    }
+
+    /**
+     * Obtain the shared event sweep of this tree. The sweep is created on
+     * first use and is brought up to date by calling its update() method.
+     *
+     * @return event sweep
+     */
+    public SeedbankEventSweep getEventSweep() {
+        if (eventSweep == null)
+            eventSweep = new SeedbankEventSweep(this);
+        return eventSweep;
+    }
+
+    /**
+     * Obtain the probability of the type at the top of the branch above a
+     * node given the type at its base, from the closed-form kernel of a
+     * transition model snapshot. Values are cached for each branch until the
+     * branch length or the transition rates change.
+     * 
+     * @param node node at base of branch
+     * @param i type at base of branch
+     * @param j type at top of branch
+     * @param model transition model snapshot
+     * @return P(L)_ij, where L is the length of the branch
+     */
+    public double getBranchTransitionProb(Node node, int i, int j,
+            TransitionModelSnapshot model) {
+        if (branchProbs == null || branchProbVersions.length != nodeCount) {
+            branchProbs = new double[4*nodeCount];
+            storedBranchProbs = new double[4*nodeCount];
+            branchProbLengths = new double[nodeCount];
+            storedBranchProbLengths = new double[nodeCount];
+            branchProbVersions = new long[nodeCount];
+            storedBranchProbVersions = new long[nodeCount];
+        }
+        
+        int nr = node.getNr();
+        double L = node.getLength();
+        long version = model.getRateVersion();
+        if (branchProbVersions[nr] != version || branchProbLengths[nr] != L) {
+            for (int k = 0; k < 4; k++)
+                branchProbs[4*nr + k] = model.getTransitionProb(k/2, k%2, L);
+            branchProbLengths[nr] = L;
+            branchProbVersions[nr] = version;
+        }
+        
+        return branchProbs[4*nr + 2*i + j];
+    }
+
+    @Override
+    public void startEditing(Operator operator) {
+        super.startEditing(operator);
+        stateVersion = ++lastStateVersion;
     }
     
     /**
@@ -321,6 +418,7 @@ public class SeedbankTree extends Tree {
             root.setRight(null);
         }
         assignFromFragileHelper(iRoot + 1, nodeCount, otherNodes);
+        replaced();
     }
 
     /**
@@ -358,77 +456,112 @@ public class SeedbankTree extends Tree {
      * @return true if types and times are valid
      */
     public boolean isValid() {
-    	// check root
-    	if (root.getLength() != 0.0 || ((SeedbankNode)root).getChangeCount() != 0)
-    		return false;
-    	
-        return timesAreValid(root) && typesAreValid(root);
+        for (Node node : m_nodes) {
+            if (!nodeIsValid((SeedbankNode)node))
+                return false;
+        }
+        
+        return true;
     }
     
-    private boolean timesAreValid(Node node) {
-        for (Node child : node.getChildren()) {
-            double lastHeight = node.getHeight();
-            for (int idx=((SeedbankNode)child).getChangeCount()-1; idx>=0; idx--) { 
-                double thisHeight = ((SeedbankNode)child).getChangeTime(idx);
-                if (thisHeight>lastHeight)
-                    return false;
-                lastHeight = thisHeight;
+    /**
+     * Equivalent to isValid(), but only re-checks nodes marked dirty since
+     * the result was last computed. The outcome of the check is cached for
+     * each node and stored and restored together with the tree, so the cost
+     * is proportional to the size of the edit rather than of the tree. A
+     * full check is carried out if the tree has changed without its nodes
+     * being marked dirty.
+     * 
+     * @return true if types and times are valid
+     */
+    public boolean isValidIncremental() {
+        if (validityKnown && validityVersion == stateVersion)
+            return invalidNodeCount == 0;
+        
+        if (!validityKnown || !somethingIsDirty()
+                || nodeIsValid == null || nodeIsValid.length != nodeCount) {
+            if (nodeIsValid == null || nodeIsValid.length != nodeCount) {
+                nodeIsValid = new boolean[nodeCount];
+                storedNodeIsValid = new boolean[nodeCount];
+            }
+            invalidNodeCount = 0;
+            for (Node node : m_nodes) {
+                nodeIsValid[node.getNr()] = nodeIsValid((SeedbankNode)node);
+                if (!nodeIsValid[node.getNr()])
+                    invalidNodeCount += 1;
+            }
+        } else {
+            // A node's height also bounds the branches of its children:
+            for (Node node : m_nodes) {
+                if (node.isDirty() == IS_CLEAN)
+                    continue;
+                updateNodeValidity(node);
+                for (Node child : node.getChildren())
+                    updateNodeValidity(child);
             }
-            if (child.getHeight()>lastHeight)
-                return false;
-            
-            if (!timesAreValid(child))
-                return false;
         }
         
-        return true;
+        validityKnown = true;
+        validityVersion = stateVersion;
+        return invalidNodeCount == 0;
     }
     
-    private boolean typesAreValid(Node node) {
-    	assert (node instanceof SeedbankNode);
-    	SeedbankNode sbNode = (SeedbankNode)node;
-    	
-    	if (!sbNode.isLeaf()) { 
-    		if ((sbNode).getNodeType() != 1)
-    			return false;
-    		
-    		for (Node child : node.getChildren()) {
-    			assert (child instanceof SeedbankNode);
-    			SeedbankNode sbChild = (SeedbankNode)child;
-    			
-    			switch (sbChild.getChangeCount()) {
-    				case 0:
-    					if (sbChild.getNodeType() != 1)
-    						return false;
-    					break;
-    					
-    				case 1:
-    					if (sbChild.getNodeType() != 0 || sbChild.getChangeType(0) != 1)
-    						return false;
-    					break;
-    					
-    				default:
-    					if (sbChild.getFinalType() != 1)
-    	                    return false;
-    	                
-    	                int lastType=1;
-    	                for (int idx=sbChild.getChangeCount()-2; idx>=0; idx--) { 
-    	                    int thisType = sbChild.getChangeType(idx);
-    	                    if (thisType == lastType) // types have to alternate
-    	                        return false;
-    	                    lastType = thisType;
-    	                }
-    	                
-    	                if (lastType == sbChild.getNodeType())
-    	                	return false;
-    			}
+    private void updateNodeValidity(Node node) {
+        int nr = node.getNr();
+        boolean valid = nodeIsValid((SeedbankNode)node);
+        if (valid != nodeIsValid[nr]) {
+            invalidNodeCount += valid ? -1 : 1;
+            nodeIsValid[nr] = valid;
+        }
+    }
+    
+    /**
+     * Check the type of a node and the times and types of changes on the
+     * branch above it.
+     * 
+     * @param node node to check
+     * @return true if node and branch are valid
+     */
+    private boolean nodeIsValid(SeedbankNode node) {
+        if (!node.isLeaf() && node.getNodeType() != 1)
+            return false;
+        
+        if (node.isRoot())
+            return node.getLength() == 0.0 && node.getChangeCount() == 0;
+        
+        // Times must lie between node and parent heights:
+        double lastHeight = node.getParent().getHeight();
+        for (int idx=node.getChangeCount()-1; idx>=0; idx--) { 
+            double thisHeight = node.getChangeTime(idx);
+            if (thisHeight>lastHeight)
+                return false;
+            lastHeight = thisHeight;
+        }
+        if (node.getHeight()>lastHeight)
+            return false;
+        
+        // Branch must end in active type, alternating along the way:
+        switch (node.getChangeCount()) {
+            case 0:
+                return node.getNodeType() == 1;
                 
-                if (!typesAreValid(child))
+            case 1:
+                return node.getNodeType() == 0 && node.getChangeType(0) == 1;
+                
+            default:
+                if (node.getFinalType() != 1)
                     return false;
-            }
-    	}
-    	
-        return true;
+                
+                int lastType=1;
+                for (int idx=node.getChangeCount()-2; idx>=0; idx--) { 
+                    int thisType = node.getChangeType(idx);
+                    if (thisType == lastType) // types have to alternate
+                        return false;
+                    lastType = thisType;
+                }
+                
+                return lastType != node.getNodeType();
+        }
     }
     
     /**
@@ -740,6 +873,55 @@ public class SeedbankTree extends Tree {
         sbStoredRoot.nodeType = ((SeedbankNode)m_nodes[iRoot]).nodeType;
         
         storeNodes(iRoot+1, nodeCount);
+
+        storedStateVersion = stateVersion;
+        if (eventSweep != null)
+            eventSweep.store();
+        
+        // Cached validity is only of use to incremental checks if no
+        // unchecked edits have since had their dirty flags cleared:
+        if (validityVersion != stateVersion)
+            validityKnown = false;
+        if (validityKnown)
+            System.arraycopy(nodeIsValid, 0, storedNodeIsValid, 0, nodeCount);
+        if (branchProbs != null) {
+            System.arraycopy(branchProbs, 0, storedBranchProbs, 0, branchProbs.length);
+            System.arraycopy(branchProbLengths, 0, storedBranchProbLengths, 0, nodeCount);
+            System.arraycopy(branchProbVersions, 0, storedBranchProbVersions, 0, nodeCount);
+        }
+        storedInvalidNodeCount = invalidNodeCount;
+        storedValidityKnown = validityKnown;
+        storedValidityVersion = validityVersion;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+
+        stateVersion = storedStateVersion;
+        if (eventSweep != null)
+            eventSweep.restore();
+        
+        if (storedValidityKnown) {
+            boolean[] tmp = nodeIsValid;
+            nodeIsValid = storedNodeIsValid;
+            storedNodeIsValid = tmp;
+        }
+        invalidNodeCount = storedInvalidNodeCount;
+        validityKnown = storedValidityKnown;
+        validityVersion = storedValidityVersion;
+        
+        if (branchProbs != null) {
+            double[] tmp = branchProbs;
+            branchProbs = storedBranchProbs;
+            storedBranchProbs = tmp;
+            tmp = branchProbLengths;
+            branchProbLengths = storedBranchProbLengths;
+            storedBranchProbLengths = tmp;
+            long[] tmpVersions = branchProbVersions;
+            branchProbVersions = storedBranchProbVersions;
+            storedBranchProbVersions = tmpVersions;
+        }
     }
 
     /**
@@ -1,10 +1,8 @@
 package seedbanktree.evolution.tree;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jblas.DoubleMatrix;
-import org.jblas.MatrixFunctions;
 
 import beast.base.core.Description;
 import beast.base.core.Function;
@@ -12,6 +10,7 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.CalculationNode;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.inference.util.InputUtil;
 
 @Description("A model for active to dormant and dormant to active transitions.")
 public class TransitionModel extends CalculationNode {
@@ -27,25 +26,43 @@ public class TransitionModel extends CalculationNode {
 	
     public Input<Function> thetaInput = new Input<>(
             "theta", "Scaled active effective population size.", Validate.REQUIRED);
+    
+    public Input<Function> epochTimesInput = new Input<>(
+            "epochTimes", "Increasing times before the most recent sample at which "
+            + "new epochs begin. c and theta may then be given either one value or "
+            + "one value per epoch.");
 	
     // Shadow inputs
     protected Function c;
     protected Function K;
     protected Function theta;
+    protected Function epochTimes;
+    protected int nEpochs;
+    
+    // Immutable snapshot of the current parameter values and the
+    // quantities derived from them, and the snapshot of the stored state:
+    protected volatile TransitionModelSnapshot snapshot;
+    protected TransitionModelSnapshot storedSnapshot;
     
-    protected double mu;
-    protected DoubleMatrix Q, R;
-    protected List<DoubleMatrix> RpowN;
-    protected boolean RpowSteady;
+    // Matrix views of Q, R and of the most recently requested power of R,
+    // filled in on request:
+    protected DoubleMatrix Q, R, RpowN;
+    protected int RpowNPower;
+    protected boolean matricesKnown;
         
-    // Flag to indicate whether EV decompositions need updating.
+    // Flag to indicate whether the snapshot needs updating.
     protected boolean dirty;
     
+    // Identify the current values of the transition rates (c and K) and
+    // of the coalescent rates (theta and K). Versions are unique across all
+    // transition models so that caches can be keyed on them alone.
+    private static final AtomicLong lastVersion = new AtomicLong();
+    protected long rateVersion, storedRateVersion;
+    protected long popSizeVersion, storedPopSizeVersion;
+    
 	
     @Override
     public void initAndValidate() {
-    	RpowN = new ArrayList<>();
-    	
     	c = cInput.get();
     	K = KInput.get();
     	theta = thetaInput.get();
@@ -59,159 +76,262 @@ public class TransitionModel extends CalculationNode {
         if (theta instanceof RealParameter)
             ((RealParameter)theta).setLower(Math.max(((RealParameter)theta).getLower(), 0.0));
         
+        epochTimes = epochTimesInput.get();
+        nEpochs = epochTimes == null ? 1 : epochTimes.getDimension() + 1;
+        if (epochTimes instanceof RealParameter)
+            ((RealParameter)epochTimes).setLower(Math.max(((RealParameter)epochTimes).getLower(), 0.0));
+        for (int e = 1; e < nEpochs; e++) {
+            if (!(getEpochStartTime(e) > getEpochStartTime(e-1)))
+                throw new IllegalArgumentException("epochTimes must be positive "
+                        + "and increasing.");
+        }
+        if (c.getDimension() != 1 && c.getDimension() != nEpochs)
+            throw new IllegalArgumentException("c must have 1 or " + nEpochs + " values.");
+        if (theta.getDimension() != 1 && theta.getDimension() != nEpochs)
+            throw new IllegalArgumentException("theta must have 1 or " + nEpochs + " values.");
+        
         dirty = true;
+        rateVersion = lastVersion.incrementAndGet();
+        popSizeVersion = lastVersion.incrementAndGet();
         updateMatrices();
     }
     
     /**
-     * Ensure all local fields including matrices and eigenvalue decomposition
-     * objects are consistent with current values held by inputs.
+     * Ensure the snapshot is consistent with current values held by
+     * inputs. The matrix views are only refreshed when next requested.
      */
     public void updateMatrices()  {
 
         if (!dirty)
             return;
 
-        mu = 0.0;
-        Q = new DoubleMatrix(2, 2);
-        
-        Q.put(0, 1, getBackwardRate(0, 1));
-        Q.put(0, 0, -getBackwardRate(0, 1));
-        Q.put(1, 0, getBackwardRate(1, 0));
-        Q.put(1, 1, -getBackwardRate(1, 0));
-        
-        mu = Math.max(Q.get(0, 1), Q.get(1, 0));
-
-
-        // Set up uniformized backward transition rate matrix:
-        R = Q.mul(1.0/mu).add(DoubleMatrix.eye(2));
-        
-        // Clear cached powers of R and steady state flag:
-        RpowN.clear();
-        RpowSteady = false;
-        
-        // Power sequences initially contain R^0 = I
-        RpowN.add(DoubleMatrix.eye(2));
-
+        snapshot = new TransitionModelSnapshot(this, rateVersion, popSizeVersion);
+        matricesKnown = false;
         dirty = false;
     }
     
+    /**
+     * Obtain an immutable snapshot of the model for the current parameter
+     * values. The snapshot is replaced by requiresRecalculation() and
+     * restore() on the thread which changes or restores the model, so any
+     * number of threads may then read it without locking. Callers should
+     * take one snapshot per operation and read all values from it.
+     * 
+     * @return current snapshot
+     */
+    public TransitionModelSnapshot getSnapshot() {
+        TransitionModelSnapshot current = snapshot;
+        assert current.ratesMatch(this) && current.popSizesMatch(this)
+                : "Transition model parameters changed without notification.";
+        return current;
+    }
+    
     /**
      * Power above which R is known to be steady.
      * 
-     * @param symmetric
-     * @return index of first known steady element.
+     * @return index of first steady power, or -1 if powers of R never
+     * become steady.
      */
     public int RpowSteadyN() {
-        if (RpowSteady)
-            return RpowN.size();
-        else
-            return -1;
+        return getSnapshot().RpowSteadyN();
     }
     
     /**
-     * Get transition rates.
+     * Get transition rates. With multiple epochs these are the rates of
+     * the first epoch.
      *
      * @param i, from type
      * @param j, to type
      * @return rate
      */
     public double getBackwardRate(int i, int j) {
+        return getBackwardRate(i, j, 0);
+    }
+    
+    /**
+     * Get transition rates within an epoch.
+     *
+     * @param i, from type
+     * @param j, to type
+     * @param epoch epoch index
+     * @return rate
+     */
+    public double getBackwardRate(int i, int j, int epoch) {
         if ( i == j ) {
             return 0;
         } else if ( i == 1 && j == 0) {
-        	return c.getArrayValue();
+        	return getEpochValue(c, epoch);
         } else { //( i == 0 && j == 1 )
-        	return c.getArrayValue() * K.getArrayValue();
+        	return getEpochValue(c, epoch) * K.getArrayValue();
         } 
     }
     
     /**
-     * Get scaled effective population size.
+     * Get scaled effective population size. With multiple epochs this is
+     * the size during the first epoch.
      *
      * @param i deme index
      * @return Effective population size.
      */
     public double getPopSize(int i) {
+        return getPopSize(i, 0);
+    }
+    
+    /**
+     * Get scaled effective population size within an epoch.
+     *
+     * @param i deme index
+     * @param epoch epoch index
+     * @return Effective population size.
+     */
+    public double getPopSize(int i, int epoch) {
         if (i == 1) {
-        	return theta.getArrayValue();
+        	return getEpochValue(theta, epoch);
         } else { // i == 0
-        	return theta.getArrayValue() / K.getArrayValue();
+        	return getEpochValue(theta, epoch) / K.getArrayValue();
         }
     }
     
+    private double getEpochValue(Function param, int epoch) {
+        return param.getDimension() == 1
+                ? param.getArrayValue() : param.getArrayValue(epoch);
+    }
+    
+    /**
+     * @return number of epochs of piecewise constant c and theta
+     */
+    public int getEpochCount() {
+        return nEpochs;
+    }
+    
+    /**
+     * @param epoch epoch index
+     * @return time (before the most recent sample) at which epoch begins
+     */
+    public double getEpochStartTime(int epoch) {
+        return epoch == 0 ? 0.0 : epochTimes.getArrayValue(epoch-1);
+    }
+    
     public double getK() {
     	return K.getArrayValue();
     }
     
 
     public double getMu() {
-        updateMatrices();
-        return mu;
+        return getSnapshot().getMu();
     }
     
 
+    /**
+     * @return matrix view of R. Prefer getR(i, j), which avoids jblas.
+     */
     public DoubleMatrix getR() {
-        updateMatrices();
+        updateMatrixViews();
         return R;
     }
     
 
+    /**
+     * @return matrix view of Q. Prefer getQ(i, j), which avoids jblas.
+     */
     public DoubleMatrix getQ() {
-        updateMatrices();
+        updateMatrixViews();
         return Q;
     }
     
-    public DoubleMatrix getRpowN(int n) {
+    private void updateMatrixViews() {
         updateMatrices();
+        if (matricesKnown)
+            return;
         
-        List <DoubleMatrix> matPowerList;
-        DoubleMatrix mat;
-        
-        matPowerList = RpowN;
-        mat = R;
-        
-        if (n>=matPowerList.size()) {
-                
-            // Steady state of matrix iteration already reached
-            if (RpowSteady) {
-                return matPowerList.get(matPowerList.size()-1);
+        if (Q == null) {
+            Q = new DoubleMatrix(2, 2);
+            R = new DoubleMatrix(2, 2);
+        }
+        for (int i=0; i<2; i++) {
+            for (int j=0; j<2; j++) {
+                Q.put(i, j, snapshot.getQ(i, j));
+                R.put(i, j, snapshot.getR(i, j));
             }
-                
-            int startN = matPowerList.size();
-            for (int i=startN; i<=n; i++) {
-                matPowerList.add(matPowerList.get(i-1).mmul(mat));
-                                    
-                // Occasionally check whether matrix iteration has reached steady state
-                if (i%10 == 0) {
-                    double maxDiff = 0.0;
-                    for (double el : matPowerList.get(i).sub(matPowerList.get(i-1)).toArray())
-                        maxDiff = Math.max(maxDiff, Math.abs(el));
-                        
-                    if (!(maxDiff>0)) {
-                        RpowSteady = true;                    
-                        return matPowerList.get(i);
-                    }
-                }
+        }
+        RpowNPower = -1;
+        matricesKnown = true;
+    }
+    
+    /**
+     * @param n power
+     * @return matrix view of R^n, which is overwritten by the next call.
+     * Prefer TransitionModelSnapshot.getRpowN(n, i, j), which avoids jblas.
+     */
+    public DoubleMatrix getRpowN(int n) {
+        updateMatrixViews();
+        if (RpowN == null)
+            RpowN = new DoubleMatrix(2, 2);
+        if (n != RpowNPower) {
+            for (int i=0; i<2; i++) {
+                for (int j=0; j<2; j++)
+                    RpowN.put(i, j, snapshot.getRpowN(n, i, j));
             }
+            RpowNPower = n;
         }
-        return matPowerList.get(n);
+        return RpowN;
     }
-
+    
     /*
      * CalculationNode implementations.
      */
     
+    /**
+     * @return number which changes whenever the transition rates (c or K)
+     * or the epoch boundaries change, and reverts to its previous value
+     * when they are restored
+     */
+    public long getRateVersion() {
+        return rateVersion;
+    }
+    
+    /**
+     * @return number which changes whenever the coalescent rates (theta
+     * or K) change, and reverts to its previous value when they are
+     * restored
+     */
+    public long getPopSizeVersion() {
+        return popSizeVersion;
+    }
+    
     @Override
     protected boolean requiresRecalculation() {
-        // we only get here if something is dirty
+        // we only get here if something is dirty, but only c, K and the
+        // epoch boundaries affect the transition rates:
+        boolean cDirty = InputUtil.isDirty(cInput);
+        boolean KDirty = InputUtil.isDirty(KInput);
+        if (cDirty || KDirty || InputUtil.isDirty(epochTimesInput))
+            rateVersion = lastVersion.incrementAndGet();
+        if (KDirty || InputUtil.isDirty(thetaInput))
+            popSizeVersion = lastVersion.incrementAndGet();
+        
+        // Snapshot is replaced before any consumer reads it:
         dirty = true;
+        updateMatrices();
         return true;
     }
 
+    @Override
+    protected void store() {
+        storedRateVersion = rateVersion;
+        storedPopSizeVersion = popSizeVersion;
+        storedSnapshot = snapshot;
+        super.store();
+    }
+
     @Override
     protected void restore() {
-        dirty = true;
+        rateVersion = storedRateVersion;
+        popSizeVersion = storedPopSizeVersion;
+        if (storedSnapshot != null && snapshot != storedSnapshot) {
+            snapshot = storedSnapshot;
+            matricesKnown = false;
+        }
         super.restore();
     }
     
@@ -0,0 +1,293 @@
+package seedbanktree.evolution.tree;
+
+import beast.base.util.GammaFunction;
+
+/**
+ * Immutable copy of a transition model's parameters for one state of the
+ * chain, together with the quantities derived from them: transition and
+ * coalescent rates of every epoch, and the uniformization constant and
+ * closed-form kernels of the two-state chain under first-epoch rates.
+ * The kernels are what the retype operators propose from, so with several
+ * epochs their proposals ignore later epoch rates; the Hastings ratio uses
+ * the same kernels, which keeps the proposals valid but not efficient.
+ *
+ * A snapshot never changes once created, so it may be read from any
+ * number of threads without locking. Snapshots are obtained from
+ * TransitionModel.getSnapshot() and are identified by the rate and
+ * population size versions of the model they were taken from.
+ */
+public final class TransitionModelSnapshot {
+
+    private final long rateVersion, popSizeVersion;
+
+    private final int nEpochs;
+    private final double[] epochStartTimes;
+    private final boolean epochStartTimesValid;
+    private final double K;
+    // Per epoch: active to dormant rate c, dormant to active rate cK and
+    // scaled active population size theta.
+    private final double[] activeToDormantRates, dormantToActiveRates, thetas;
+
+    // Elements of Q, R and of log Q (first epoch, off-diagonal elements
+    // only), stored row by row:
+    private final double[] QElements = new double[4];
+    private final double[] RElements = new double[4];
+    private final double[] logQElements = new double[4];
+    private final double mu;
+
+    // Closed forms for the two-state chain (first epoch): with total rate
+    // s = cK + c and stationary distribution pi,
+    //   P(t)_ij = pi_j + exp(-s t)(delta_ij - pi_j),
+    //   (R^n)_ij = pi_j + lambda^n (delta_ij - pi_j), lambda = 1 - s/mu.
+    private final double totalRate, lambda;
+    private final double[] pi = new double[2];
+    private final int RpowSteadyN;
+
+    TransitionModelSnapshot(TransitionModel model, long rateVersion, long popSizeVersion) {
+        this.rateVersion = rateVersion;
+        this.popSizeVersion = popSizeVersion;
+
+        nEpochs = model.getEpochCount();
+        epochStartTimes = new double[nEpochs];
+        activeToDormantRates = new double[nEpochs];
+        dormantToActiveRates = new double[nEpochs];
+        thetas = new double[nEpochs];
+        for (int e = 0; e < nEpochs; e++) {
+            epochStartTimes[e] = model.getEpochStartTime(e);
+            activeToDormantRates[e] = model.getBackwardRate(1, 0, e);
+            dormantToActiveRates[e] = model.getBackwardRate(0, 1, e);
+            thetas[e] = model.getPopSize(1, e);
+        }
+        K = model.getK();
+
+        boolean increasing = true;
+        for (int e = 1; e < nEpochs; e++)
+            increasing &= epochStartTimes[e] > epochStartTimes[e-1];
+        epochStartTimesValid = increasing;
+
+        double rate01 = dormantToActiveRates[0];
+        double rate10 = activeToDormantRates[0];
+        mu = Math.max(rate01, rate10);
+
+        QElements[0] = -rate01;
+        QElements[1] = rate01;
+        QElements[2] = rate10;
+        QElements[3] = -rate10;
+
+        // Uniformized backward transition rate matrix R = I + Q/mu:
+        RElements[0] = 1.0 - rate01/mu;
+        RElements[1] = rate01/mu;
+        RElements[2] = rate10/mu;
+        RElements[3] = 1.0 - rate10/mu;
+
+        for (int k = 0; k < 4; k++)
+            logQElements[k] = Math.log(QElements[k]);
+
+        // Spectral quantities of the two-state chain:
+        totalRate = rate01 + rate10;
+        if (totalRate > 0.0) {
+            pi[0] = rate10/totalRate;
+            pi[1] = rate01/totalRate;
+            lambda = 1.0 - totalRate/mu;
+        } else {
+            // No transitions: P(t) = R^n = I.
+            pi[0] = 0.5;
+            pi[1] = 0.5;
+            lambda = 1.0;
+        }
+
+        // Powers of R are equal to double precision once |lambda|^n is
+        // negligible, and never become steady if |lambda| = 1:
+        if (lambda == 0.0)
+            RpowSteadyN = 1;
+        else if (Math.abs(lambda) < 1.0)
+            RpowSteadyN = (int)Math.ceil(Math.log(0x1.0p-53)/Math.log(Math.abs(lambda)));
+        else
+            RpowSteadyN = -1;
+    }
+
+    /**
+     * @param model transition model
+     * @return true if the transition rates of the model, including the
+     * epoch boundaries, are those held by this snapshot
+     */
+    boolean ratesMatch(TransitionModel model) {
+        if (model.getEpochCount() != nEpochs || model.getK() != K)
+            return false;
+        for (int e = 0; e < nEpochs; e++) {
+            if (model.getEpochStartTime(e) != epochStartTimes[e]
+                    || model.getBackwardRate(1, 0, e) != activeToDormantRates[e]
+                    || model.getBackwardRate(0, 1, e) != dormantToActiveRates[e])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param model transition model
+     * @return true if the population sizes of the model are those held by
+     * this snapshot
+     */
+    boolean popSizesMatch(TransitionModel model) {
+        if (model.getEpochCount() != nEpochs || model.getK() != K)
+            return false;
+        for (int e = 0; e < nEpochs; e++) {
+            if (model.getPopSize(1, e) != thetas[e])
+                return false;
+        }
+        return true;
+    }
+
+    public long getRateVersion() {
+        return rateVersion;
+    }
+
+    public long getPopSizeVersion() {
+        return popSizeVersion;
+    }
+
+    public int getEpochCount() {
+        return nEpochs;
+    }
+
+    /**
+     * @return true if the epoch start times are positive and strictly
+     * increasing, as they may not be once epoch times are estimated
+     */
+    public boolean hasValidEpochStartTimes() {
+        return epochStartTimesValid;
+    }
+
+    /**
+     * @param epoch epoch index
+     * @return time (before the most recent sample) at which epoch begins
+     */
+    public double getEpochStartTime(int epoch) {
+        return epochStartTimes[epoch];
+    }
+
+    public double getK() {
+        return K;
+    }
+
+    /**
+     * @param i from type
+     * @param j to type
+     * @param epoch epoch index
+     * @return backward transition rate within epoch
+     */
+    public double getBackwardRate(int i, int j, int epoch) {
+        if (i == j)
+            return 0.0;
+        return i == 1 ? activeToDormantRates[epoch] : dormantToActiveRates[epoch];
+    }
+
+    public double getBackwardRate(int i, int j) {
+        return getBackwardRate(i, j, 0);
+    }
+
+    /**
+     * @param i deme index
+     * @param epoch epoch index
+     * @return scaled effective population size within epoch
+     */
+    public double getPopSize(int i, int epoch) {
+        return i == 1 ? thetas[epoch] : thetas[epoch]/K;
+    }
+
+    public double getPopSize(int i) {
+        return getPopSize(i, 0);
+    }
+
+    public double getMu() {
+        return mu;
+    }
+
+    /**
+     * @return index of first steady power of R, or -1 if powers of R
+     * never become steady.
+     */
+    public int RpowSteadyN() {
+        return RpowSteadyN;
+    }
+
+    /**
+     * @param i from type
+     * @param j to type
+     * @return element of backward transition rate matrix Q
+     */
+    public double getQ(int i, int j) {
+        return QElements[2*i+j];
+    }
+
+    /**
+     * @param i from type
+     * @param j to type, different from i
+     * @return log of backward transition rate from i to j
+     */
+    public double getLogQ(int i, int j) {
+        return logQElements[2*i+j];
+    }
+
+    /**
+     * @param i from type
+     * @param j to type
+     * @return element of uniformized transition matrix R = I + Q/mu
+     */
+    public double getR(int i, int j) {
+        return RElements[2*i+j];
+    }
+
+    /**
+     * Element of the n-th power of R, obtained in closed form.
+     *
+     * @param n power
+     * @param i from type
+     * @param j to type
+     * @return (R^n)_ij
+     */
+    public double getRpowN(int n, int i, int j) {
+        if (n == 0 || totalRate == 0.0)
+            return i == j ? 1.0 : 0.0;
+        if (n == 1)
+            return getR(i, j);
+
+        // Cancellation may leave a tiny negative value in place of zero:
+        double lambdaPowN = RpowSteadyN >= 0 && n >= RpowSteadyN ? 0.0 : Math.pow(lambda, n);
+        return Math.max(0.0, pi[j] + lambdaPowN*((i == j ? 1.0 : 0.0) - pi[j]));
+    }
+
+    /**
+     * Element of the transition probability matrix P(t) = exp(Qt), obtained
+     * in closed form.
+     *
+     * @param i type at start of interval
+     * @param j type at end of interval
+     * @param t length of interval
+     * @return P(t)_ij
+     */
+    public double getTransitionProb(int i, int j, double t) {
+        // Probability that at least one event of the total rate occurred:
+        double pAny = -Math.expm1(-totalRate*t);
+        return i == j ? 1.0 - pi[1-i]*pAny : pi[j]*pAny;
+    }
+
+    /**
+     * Probability of n virtual events on an interval of the uniformized
+     * chain, conditional on the types at either end of the interval:
+     * Poisson(n; mu t) (R^n)_ij / P(t)_ij.
+     *
+     * @param n number of virtual events
+     * @param i type at start of interval
+     * @param j type at end of interval
+     * @param t length of interval
+     * @return conditional probability of n virtual events
+     */
+    public double getVirtualEventCountProb(int n, int i, int j, double t) {
+        double muT = mu*t;
+        double logPoisson = n == 0 ? -muT
+                : n*Math.log(muT) - muT - GammaFunction.lnGamma(n + 1.0);
+        return Math.exp(logPoisson + Math.log(getRpowN(n, i, j))
+                - Math.log(getTransitionProb(i, j, t)));
+    }
+}
@@ -4,21 +4,51 @@ import java.util.Arrays;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 
-import org.jblas.MatrixFunctions;
-
+import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.util.InputUtil;
 import beast.base.util.Randomizer;
 import seedbanktree.evolution.tree.SeedbankNode;
-import seedbanktree.evolution.tree.TransitionModel;
+import seedbanktree.evolution.tree.TransitionModelSnapshot;
 
 public abstract class UniformizationRetypeOperator extends SeedbankTreeOperator {
     
+    public Input<String> pathSamplerInput = new Input<>("pathSampler",
+            "Method used to sample type changes on a branch: auto, uniformization, "
+            + "rejection or direct. Auto chooses the cheapest method for each "
+            + "branch. Uniformization samples long branches directly. "
+            + "(Default auto.)", "auto");
+    
+    private PathSampler fixedSampler;
+    
     public UniformizationRetypeOperator() {
     	transitionModelInput.setRule(Validate.REQUIRED);
     }
     
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        
+        switch (pathSamplerInput.get()) {
+            case "auto":
+                fixedSampler = null;
+                break;
+            case "uniformization":
+                fixedSampler = uniformizationSampler;
+                break;
+            case "rejection":
+                fixedSampler = rejectionSampler;
+                break;
+            case "direct":
+                fixedSampler = directSampler;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pathSampler '"
+                        + pathSamplerInput.get() + "'.");
+        }
+    }
+    
     /**
      * Exception used to signal non-existence of allowed type sequence
      * between node types.
@@ -30,56 +60,126 @@ public abstract class UniformizationRetypeOperator extends SeedbankTreeOperator
         }
     }
     
+    // Number of smallest event counts whose conditional probabilities are
+    // accumulated explicitly before switching to rejection sampling:
+    private static final int HEAD_TERMS = 16;
+    
     /**
      * Sample the number of virtual events to occur along branch.
      * 
-     * General strategy here is to:
+     * The conditional distribution of the count is
+     * P(n|a,b) = Poisson(n; muL) (R^n)_ab / P_ab, where (R^n)_ab is known
+     * in closed form for the two-state chain. General strategy here is to:
      * 1. Draw u from Unif(0,1),
-     * 2. Starting from zero, evaluate P(n leq 0|a,b) up until n=thresh
+     * 2. Starting from zero, evaluate P(n leq 0|a,b) up until n=HEAD_TERMS
      * or P(n leq 0|a,b)>u.
-     * 3. If P(n leq 0|a,b) has exceeded u, use that n. If not, use rejection
-     * sampling to draw conditional on n being >= thresh.
+     * 3. If P(n leq 0|a,b) has exceeded u, use that n. If not, draw n from
+     * a Poisson distribution truncated to n geq HEAD_TERMS and accept it with
+     * probability (R^n)_ab/max_{m geq HEAD_TERMS}(R^m)_ab.
+     * 
+     * Since (R^n)_ab tends to the stationary probability of b, the
+     * acceptance probability of the last step is bounded away from zero
+     * and the expected cost does not grow with muL.
      * 
      * @param typeStart Type at start (bottom) of branch
      * @param typeEnd Type at end (top) of branch
      * @param muL Expected unconditioned number of virtual events
      * @param Pba Probability of final type given start type
-     * @param transitionModel Transition model to use.
-     * @return number of virtual events.
+     * @param model Snapshot of transition model to use.
+     * @return number of virtual events, or -1 if no count could be drawn.
      */
     private int drawEventCount(int typeStart, int typeEnd, double muL, double Pba,
-            TransitionModel transitionModel) {
+            TransitionModelSnapshot model) {
     	
-        int nVirt = 0;
-
         double u = Randomizer.nextDouble();
-        double P_low_given_ab = 0.0; // a
+        double P_low_given_ab = 0.0;
         double acc = - muL - Math.log(Pba); 
         double log_muL = Math.log(muL);
         
-        do {
-        	P_low_given_ab += Math.exp(Math.log(transitionModel.getRpowN(nVirt).get(typeStart, typeEnd)) + acc);
+        for (int nVirt = 0; nVirt < HEAD_TERMS; nVirt++) {
+            if (nVirt > 0)
+                acc += log_muL - Math.log(nVirt);
+            
+        	P_low_given_ab += Math.exp(Math.log(model.getRpowN(nVirt, typeStart, typeEnd)) + acc);
         	
             if (P_low_given_ab>u)
                 return nVirt;
-            
-            nVirt += 1;
-            acc += log_muL - Math.log(nVirt);
-
-        } while (transitionModel.RpowSteadyN()<0 || nVirt<transitionModel.RpowSteadyN());
+        }
         
-        int thresh = nVirt;
-        do {
-            nVirt = (int) Randomizer.nextPoisson(muL);
-        } while (nVirt < thresh);
-
-        return nVirt;
+        // Powers of R approach their limit with alternating or constant
+        // sign, so the largest remaining element is one of the next two:
+        double RpowMax = Math.max(model.getRpowN(HEAD_TERMS, typeStart, typeEnd),
+                model.getRpowN(HEAD_TERMS+1, typeStart, typeEnd));
+        if (!(RpowMax > 0.0))
+            return -1;
+        
+        while (true) {
+            int nVirt = drawTruncatedPoisson(muL, HEAD_TERMS);
+            if (Randomizer.nextDouble()*RpowMax < model.getRpowN(nVirt, typeStart, typeEnd))
+                return nVirt;
+        }
+    }
+    
+    /**
+     * Draw from a Poisson distribution conditioned on the result being
+     * at least min. Uses rejection when the mean is large enough for most
+     * draws to be accepted, and otherwise inverts the conditional
+     * distribution function, whose mass then lies within a few terms of min.
+     * 
+     * @param mean mean of untruncated distribution
+     * @param min smallest permitted value
+     * @return truncated Poisson variate
+     */
+    private static int drawTruncatedPoisson(double mean, int min) {
+        
+        if (mean >= min + 1) {
+            int n;
+            do {
+                n = (int) Randomizer.nextPoisson(mean);
+            } while (n < min);
+            return n;
+        }
+        
+        // Probabilities relative to that of min, which decrease from
+        // min onwards since mean < min + 1:
+        double total = 0.0, term = 1.0;
+        for (int n = min; term > 1e-17*total; n++) {
+            total += term;
+            term *= mean/(n + 1);
+        }
+        
+        double v = Randomizer.nextDouble()*total;
+        int n = min;
+        term = 1.0;
+        while (v >= term) {
+            v -= term;
+            term *= mean/(n + 1);
+            n += 1;
+            if (term == 0.0)
+                break;
+        }
+        return n;
     }
     
+    // Largest expected number of virtual events on an interval retyped by
+    // uniformization:
+    private static final double LONG_BRANCH_MU_L = 8.0;
+    
+    // Type changes of the path being sampled, in order of increasing time:
+    private double[] newChangeTimes = new double[16];
+    private int[] newChangeTypes = new int[16];
+    private int newChangeCount;
+    
+    // Forward-backward scratch space:
+    private double[] backward = new double[32];
+    private double[] spacingSums = new double[16];
+    
     /**
-     * Retype branch between srcNode and its parent. Uses the combined
-     * uniformization/forward-backward approach of Fearnhead and Sherlock (2006)
-     * to condition on both the beginning and end states.
+     * Retype branch between srcNode and its parent, conditional on both the
+     * beginning and end states. The path is drawn by one of the samplers
+     * below, chosen per branch by selectSampler() unless a sampler is fixed
+     * by the pathSampler input. All samplers draw from the same distribution,
+     * so the returned probability does not depend on the choice.
      *
      * @param srcNode
      * @return Probability of new state.
@@ -87,6 +187,8 @@ public abstract class UniformizationRetypeOperator extends SeedbankTreeOperator
      */
     protected double retypeBranch(Node srcNode) throws NoValidPathException {
         
+        TransitionModelSnapshot model = transitionModel.getSnapshot();
+        
         Node srcNodeP = srcNode.getParent();
         double t_srcNode = srcNode.getHeight();
         double t_srcNodeP = srcNodeP.getHeight();
@@ -96,97 +198,358 @@ public abstract class UniformizationRetypeOperator extends SeedbankTreeOperator
         int type_srcNode = ((SeedbankNode)srcNode).getNodeType();
         int type_srcNodeP = ((SeedbankNode)srcNodeP).getNodeType();
 
-        // Pre-calculate some stuff:
-        double muL = transitionModel.getMu()*L;
-        
-        double Pba = MatrixFunctions.expm(
-        		transitionModel.getQ()
-                .mul(L)).get(type_srcNode,type_srcNodeP);
+        double Pba = sbTree.getBranchTransitionProb(srcNode, type_srcNode, type_srcNodeP, model);
         
-        // Abort if transition is impossible.
+        // Abort if transition is impossible. The closed-form transition
+        // probability cannot leave [0, 1] on a branch of non-negative length.
         if (Pba == 0.0)
             throw new NoValidPathException();
+        assert Pba > 0.0 && Pba <= 1.0 : "Transition probability " + Pba;
         
-        // Catch for numerical errors
-        if (Pba>1.0 || Pba<0.0) {
-            System.err.println("Warning: matrix exponentiation resulted in rubbish.  Aborting move.");
+        // Sample type changes:
+        PathSampler sampler = fixedSampler != null ? fixedSampler
+                : selectSampler(type_srcNode, type_srcNodeP, L, model);
+        newChangeCount = 0;
+        if (!sampler.sample(t_srcNode, t_srcNodeP, type_srcNode, type_srcNodeP, Pba, model))
             return Double.NEGATIVE_INFINITY;
-        }
         
-        // Select number of virtual events:
-        int nVirt = drawEventCount(type_srcNode, type_srcNodeP, muL, Pba, transitionModel);
+        // Replace type changes on branch:
+        SeedbankNode node = (SeedbankNode)srcNode;
+        node.clearChanges();
+        for (int i = 0; i<newChangeCount; i++)
+            node.addChange(newChangeTypes[i], newChangeTimes[i]);
+
+        // Return probability of path given boundary conditions:
+        return getPathLogProb(node, model) - Math.log(Pba);
+    }
+    
+    /**
+     * Sampler of type-change paths of the two-state chain on an interval,
+     * conditional on the types at either end of the interval. Samplers append
+     * the changes they draw to the new change arrays of the operator in
+     * order of increasing time.
+     */
+    protected interface PathSampler {
         
-        if (nVirt<0)
-            return Double.NEGATIVE_INFINITY;
+        /**
+         * @param tStart time at start (bottom) of interval
+         * @param tEnd time at end (top) of interval
+         * @param typeStart type at start of interval
+         * @param typeEnd type at end of interval
+         * @param Pba probability of end type given start type
+         * @param model Snapshot of transition model to use.
+         * @return false if sampling failed numerically
+         * @throws NoValidPathException if no path exists
+         */
+        boolean sample(double tStart, double tEnd, int typeStart, int typeEnd,
+                double Pba, TransitionModelSnapshot model) throws NoValidPathException;
+    }
+    
+    /**
+     * Uniformization/forward-backward sampler of Fearnhead and Sherlock (2006).
+     * 
+     * On long intervals, where the expected number of virtual events exceeds
+     * LONG_BRANCH_MU_L, the path is drawn by the direct sampler instead. Its
+     * cost is proportional to the number of type changes drawn rather than
+     * to the number of virtual events, and it needs no powers of R.
+     */
+    private class UniformizationSampler implements PathSampler {
         
-        // Select times of virtual events:
-        double[] times = new double[nVirt];
-        for (int i = 0; i<nVirt; i++)
-            times[i] = Randomizer.nextDouble()*L+t_srcNode;
-        Arrays.sort(times);
-
-        // Sample type changes along branch using FB algorithm:
-        int[] types = new int[nVirt];
-        int prevType = type_srcNode;
-        for (int i = 1; i<=nVirt; i++) {
+        @Override
+        public boolean sample(double tStart, double tEnd, int typeStart, int typeEnd,
+                double Pba, TransitionModelSnapshot model) throws NoValidPathException {
+            
+            if (model.getMu()*(tEnd-tStart) > LONG_BRANCH_MU_L)
+                return directSampler.sample(tStart, tEnd, typeStart, typeEnd, Pba, model);
             
-            double u2 = Randomizer.nextDouble()
-                    *transitionModel.getRpowN(nVirt-i+1).get(prevType, type_srcNodeP);
-            int c;
-            boolean fellThrough = true;
-            for (c = 0; c<2; c++) {
-                u2 -= transitionModel.getR().get(prevType,c)
-                        *transitionModel.getRpowN(nVirt-i).get(c,type_srcNodeP);
-                if (u2<0.0) {
-                    fellThrough = false;
-                    break;
+            return retypeSegment(tStart, tEnd, typeStart, typeEnd, Pba, model);
+        }
+    }
+    
+    /**
+     * Modified rejection sampler of Nielsen (2002): paths are simulated
+     * forward from the start type, with the first change forced to lie
+     * within the interval if the end type differs, until a path ending in
+     * the required type is obtained. Cheap when the probability of
+     * accepting a path is high, typically on short branches.
+     */
+    private class RejectionSampler implements PathSampler {
+        
+        @Override
+        public boolean sample(double tStart, double tEnd, int typeStart, int typeEnd,
+                double Pba, TransitionModelSnapshot model) {
+            
+            int mark = newChangeCount;
+            while (true) {
+                newChangeCount = mark;
+                
+                int type = typeStart;
+                double t = tStart;
+                if (typeStart != typeEnd) {
+                    t += drawTruncatedExponential(model.getBackwardRate(type, 1-type), tEnd-tStart);
+                    type = 1-type;
+                    recordChange(type, t);
                 }
+                
+                while (true) {
+                    t -= Math.log(1.0 - Randomizer.nextDouble())/model.getBackwardRate(type, 1-type);
+                    if (!(t < tEnd))
+                        break;
+                    type = 1-type;
+                    recordChange(type, t);
+                }
+                
+                if (type == typeEnd)
+                    return true;
             }
+        }
+    }
+    
+    /**
+     * Direct sampler of Hobolth (2008): the time of each change is drawn from
+     * its distribution conditional on the current type and on the type at the
+     * end of the interval. For the two-state chain this distribution is a
+     * combination of truncated exponentials, so each change costs a few
+     * elementary function evaluations whatever the length of the interval.
+     */
+    private class DirectSampler implements PathSampler {
+        
+        @Override
+        public boolean sample(double tStart, double tEnd, int typeStart, int typeEnd,
+                double Pba, TransitionModelSnapshot model) {
             
-            // Check for FB algorithm error:
-            if (fellThrough) {
+            int type = typeStart;
+            double t = tStart;
+            while (true) {
+                double r = tEnd - t;
+                double qOut = model.getBackwardRate(type, 1-type);
+                double qIn = model.getBackwardRate(1-type, type);
                 
-                double sum1 = transitionModel.getRpowN(nVirt-i+1).get(prevType, type_srcNodeP);
-                double sum2 = transitionModel.getR().get(prevType, 0)
-                        		* transitionModel.getRpowN(nVirt-i).get(0, type_srcNodeP);
-                sum2 += transitionModel.getR().get(prevType, 1)
-                        * transitionModel.getRpowN(nVirt-i).get(1, type_srcNodeP);
+                double tau;
+                if (type == typeEnd) {
+                    // Either no further change, or at least two:
+                    double pStay = Math.exp(-qOut*r)/model.getTransitionProb(type, type, r);
+                    if (Randomizer.nextDouble() < pStay)
+                        return true;
+                    
+                    // Time to next change has density proportional to
+                    // exp(-qOut tau)(1 - exp(-(qOut+qIn)(r-tau))):
+                    do {
+                        tau = drawTruncatedExponential(qOut, r);
+                    } while (!(Randomizer.nextDouble() < -Math.expm1(-(qOut+qIn)*(r-tau))));
+                } else {
+                    // Time to next change has density proportional to
+                    // qOut exp(-qOut tau) + qIn exp(-qOut r) exp(qIn (tau-r)),
+                    // whose terms integrate to the weights below:
+                    double w1 = -Math.expm1(-qOut*r);
+                    double w2 = Math.exp(-qOut*r)*(-Math.expm1(-qIn*r));
+                    if (Randomizer.nextDouble()*(w1+w2) < w1)
+                        tau = drawTruncatedExponential(qOut, r);
+                    else
+                        tau = r - drawTruncatedExponential(qIn, r);
+                }
                 
-                System.err.println("Warning: FB algorithm failure.  Aborting move."
-                		+ " sum1: " + sum1 + ", sum2: " + sum2);
-                return Double.NEGATIVE_INFINITY;
+                t += tau;
+                type = 1-type;
+                recordChange(type, t);
             }
-            types[i-1] = c;
-            prevType = c;
+        }
+    }
+    
+    private final PathSampler uniformizationSampler = new UniformizationSampler();
+    private final PathSampler rejectionSampler = new RejectionSampler();
+    private final PathSampler directSampler = new DirectSampler();
+    
+    // Relative costs of the samplers, in units of one virtual event of the
+    // uniformization sampler. Calibrated by timing retypeBranch() with each
+    // sampler fixed on a single branch, for c and K in {0.1, 1, 10}, muL in
+    // {0.05, 0.5, 2, 8} and all end types, after JIT warm-up (OpenJDK 17).
+    // A least-squares fit of uniformization time against muL gives about
+    // 210 ns per virtual event plus 230 ns per branch. The median time of
+    // direct sampling per expected change plus one is about 210 ns, and
+    // that of rejection sampling per accepted attempt about 100 ns:
+    private static final double UNIFORMIZATION_BASE_COST = 1.0;
+    private static final double REJECTION_CHANGE_COST = 0.45;
+    private static final double DIRECT_CHANGE_COST = 1.0;
+    
+    /**
+     * Choose the sampler with the smallest expected cost for a branch.
+     * 
+     * The expected cost of uniformization grows with the expected number
+     * of virtual events muL, that of direct sampling with the expected
+     * number of type changes, and that of rejection sampling with the
+     * number of changes simulated per attempt divided by the probability
+     * of accepting an attempt. The expected number of changes is
+     * approximated by its stationary value 2 L q01 q10/(q01 + q10), plus
+     * one if the end types differ.
+     * 
+     * @param typeStart type at start (bottom) of branch
+     * @param typeEnd type at end (top) of branch
+     * @param L length of branch
+     * @param model Snapshot of transition model to use.
+     * @return sampler to use
+     */
+    protected PathSampler selectSampler(int typeStart, int typeEnd, double L,
+            TransitionModelSnapshot model) {
+        
+        double qStart = model.getBackwardRate(typeStart, 1-typeStart);
+        double qOther = model.getBackwardRate(1-typeStart, typeStart);
+        double totalRate = qStart + qOther;
+        if (!(totalRate > 0.0))
+            return directSampler;
+        
+        double changes = 2.0*L*qStart*qOther/totalRate + (typeStart != typeEnd ? 1.0 : 0.0);
+        
+        // Uniformization hands long branches to the direct sampler:
+        double muL = model.getMu()*L;
+        double uniformizationCost = muL <= LONG_BRANCH_MU_L
+                ? UNIFORMIZATION_BASE_COST + muL : Double.POSITIVE_INFINITY;
+        double directCost = DIRECT_CHANGE_COST*(changes + 1.0);
+        
+        // Probability that a forward simulation, with the first change
+        // forced if the end types differ, ends in the required type:
+        double acceptProb = model.getTransitionProb(typeStart, typeEnd, L);
+        if (typeStart != typeEnd)
+            acceptProb /= -Math.expm1(-qStart*L);
+        double rejectionCost = REJECTION_CHANGE_COST*(changes + 1.0)/acceptProb;
+        
+        if (rejectionCost <= directCost && rejectionCost <= uniformizationCost)
+            return rejectionSampler;
+        
+        return directCost <= uniformizationCost ? directSampler : uniformizationSampler;
+    }
+    
+    /**
+     * Draw from an exponential distribution truncated to [0, max].
+     * 
+     * @param rate rate of untruncated distribution
+     * @param max upper limit
+     * @return truncated exponential variate
+     */
+    private static double drawTruncatedExponential(double rate, double max) {
+        double u = Randomizer.nextDouble();
+        if (!(rate > 0.0))
+            return u*max;
+        return -Math.log1p(u*Math.expm1(-rate*max))/rate;
+    }
+    
+    /**
+     * Append a type change to the new change arrays.
+     * 
+     * @param type type above change
+     * @param time time of change
+     */
+    private void recordChange(int type, double time) {
+        if (newChangeCount == newChangeTimes.length) {
+            newChangeTimes = Arrays.copyOf(newChangeTimes, 2*newChangeCount);
+            newChangeTypes = Arrays.copyOf(newChangeTypes, 2*newChangeCount);
+        }
+        newChangeTimes[newChangeCount] = time;
+        newChangeTypes[newChangeCount] = type;
+        newChangeCount += 1;
+    }
+    
+    /**
+     * Sample the type changes on an interval of a branch conditional on the
+     * types at either end, appending them to the new change arrays.
+     * 
+     * @param tStart time at start (bottom) of interval
+     * @param tEnd time at end (top) of interval
+     * @param typeStart type at start of interval
+     * @param typeEnd type at end of interval
+     * @param Pba probability of end type given start type
+     * @param model Snapshot of transition model to use.
+     * @return false if sampling failed numerically
+     */
+    private boolean retypeSegment(double tStart, double tEnd, int typeStart, int typeEnd,
+            double Pba, TransitionModelSnapshot model) {
+        
+        double L = tEnd - tStart;
+        
+        // Select number of virtual events:
+        int nVirt = drawEventCount(typeStart, typeEnd, model.getMu()*L, Pba, model);
+        
+        if (nVirt<0)
+            return false;
+        
+        // Backward messages (R^m)_{c,typeEnd} for m = 0,...,nVirt, stored
+        // as backward[2*m+c]. These are built by repeated multiplication
+        // with R, which involves no cancellation:
+        if (backward.length < 2*(nVirt+1))
+            backward = new double[2*Math.max(nVirt+1, backward.length)];
+        double R00 = model.getR(0, 0), R01 = model.getR(0, 1);
+        double R10 = model.getR(1, 0), R11 = model.getR(1, 1);
+        backward[0] = typeEnd == 0 ? 1.0 : 0.0;
+        backward[1] = typeEnd == 1 ? 1.0 : 0.0;
+        for (int m = 1; m<=nVirt; m++) {
+            double b0 = backward[2*(m-1)], b1 = backward[2*(m-1)+1];
+            backward[2*m] = R00*b0 + R01*b1;
+            backward[2*m+1] = R10*b0 + R11*b1;
         }
 
+        // Select times of virtual events. Partial sums of nVirt+1 unit
+        // exponential spacings, divided by their total, are distributed as
+        // the order statistics of nVirt uniforms, so no sorting is needed:
+        if (spacingSums.length < nVirt+1)
+            spacingSums = new double[Math.max(nVirt+1, 2*spacingSums.length)];
+        double sum = 0.0;
+        for (int i = 0; i<=nVirt; i++) {
+            sum -= Math.log(1.0 - Randomizer.nextDouble());
+            spacingSums[i] = sum;
+        }
+        double timeScale = L/sum;
+
+        // Sample type changes along branch using FB algorithm. Only the
+        // virtual events which change type are recorded:
+        int prevType = typeStart;
+        for (int i = 1; i<=nVirt; i++) {
+            
+            int m = 2*(nVirt-i);
+            double w0 = (prevType == 0 ? R00 : R10)*backward[m];
+            double w1 = (prevType == 0 ? R01 : R11)*backward[m+1];
+            
+            // The weights sum to (R^(nVirt-i+1))_{prevType,typeEnd}, which is
+            // positive since prevType was reached on a path to typeEnd, and
+            // cannot underflow for the small powers used here:
+            assert w0+w1 > 0.0 : "Forward-backward weights sum to " + (w0+w1);
+            
+            int c = Randomizer.nextDouble()*(w0+w1) < w0 ? 0 : 1;
+            
+            // Record non-virtual type changes:
+            if (c != prevType)
+                recordChange(c, tStart + spacingSums[i-1]*timeScale);
+            prevType = c;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Obtain log probability of the type-change path above node
+     * conditional on its start type only.
+     * 
+     * @param node node at base of branch
+     * @param model Snapshot of transition model to use.
+     * @return log path probability.
+     */
+    private double getPathLogProb(SeedbankNode node, TransitionModelSnapshot model) {
+        
         double logProb = 0.0;
         
-        // Add non-virtual type changes to branch, calculating probability
-        // of path conditional on start type:
-        ((SeedbankNode)srcNode).clearChanges();
-        prevType = type_srcNode;
-        double prevTime = t_srcNode;
-        for (int i = 0; i<nVirt; i++) {
-
-            if (types[i] != prevType) {
-                // Add change to branch:
-                ((SeedbankNode)srcNode).addChange(types[i], times[i]);
+        double lastTime = node.getHeight();
+        int lastCol = node.getNodeType();
+        for (int i = 0; i<node.getChangeCount(); i++) {
+            double thisTime = node.getChangeTime(i);
+            int thisCol = node.getChangeType(i);
 
-                // Add probability contribution:
-                logProb += transitionModel.getQ().get(prevType, prevType)*(times[i]-prevTime)
-                        +Math.log(transitionModel.getQ().get(prevType, types[i]));
+            logProb += (thisTime-lastTime)*model.getQ(lastCol, lastCol)
+                    +model.getLogQ(lastCol, thisCol);
 
-                prevType = types[i];
-                prevTime = times[i];
-            }
+            lastTime = thisTime;
+            lastCol = thisCol;
         }
-        logProb += transitionModel.getQ().get(prevType, prevType)*(t_srcNodeP-prevTime);
+        logProb += (node.getParent().getHeight()-lastTime)*model.getQ(lastCol, lastCol);
         
-        // Adjust probability to account for end condition:
-        logProb -= Math.log(Pba);
-
-        // Return probability of path given boundary conditions:
         return logProb;
     }
     
@@ -198,41 +561,17 @@ public abstract class UniformizationRetypeOperator extends SeedbankTreeOperator
      */
     protected double getBranchTypeProb(Node srcNode) {
         
-    	TransitionModel transitionModel = transitionModelInput.get();
+    	TransitionModelSnapshot model = transitionModelInput.get().getSnapshot();
 
-        double logProb = 0.0;
-
-        Node srcNodeP = srcNode.getParent();
-        double t_srcNode = srcNode.getHeight();
-        double t_srcNodeP = srcNodeP.getHeight();
-        double L = t_srcNodeP-t_srcNode;
         int col_srcNode = ((SeedbankNode)srcNode).getNodeType();
-        int col_srcNodeP = ((SeedbankNode)srcNodeP).getNodeType();
+        int col_srcNodeP = ((SeedbankNode)srcNode.getParent()).getNodeType();
 
         // Probability of branch conditional on start type:
-        double lastTime = t_srcNode;
-        int lastCol = col_srcNode;
-        for (int i = 0; i<((SeedbankNode)srcNode).getChangeCount(); i++) {
-            double thisTime = ((SeedbankNode)srcNode).getChangeTime(i);
-            int thisCol = ((SeedbankNode)srcNode).getChangeType(i);
-
-            logProb += (thisTime-lastTime)*transitionModel.getQ().get(lastCol, lastCol)
-                    +Math.log(transitionModel.getQ().get(lastCol, thisCol));
-
-            lastTime = thisTime;
-            lastCol = thisCol;
-        }
-        logProb += (t_srcNodeP-lastTime)*transitionModel.getQ().get(lastCol, lastCol);
+        double logProb = getPathLogProb((SeedbankNode)srcNode, model);
 
         // Adjust to account for end condition of path:
-        double Pba = MatrixFunctions.expm(
-        		transitionModel.getQ().mul(L)).get(col_srcNode, col_srcNodeP);
-        
-        // Catch for numerical errors:
-        if (Pba>1.0 || Pba < 0.0) {
-            System.err.println("Warning: matrix exponentiation resulted in rubbish.  Aborting move.");
-            return Double.NEGATIVE_INFINITY;
-        }
+        double Pba = sbTree.getBranchTransitionProb(srcNode, col_srcNode, col_srcNodeP, model);
+        assert Pba >= 0.0 && Pba <= 1.0 : "Transition probability " + Pba;
         
         logProb -= Math.log(Pba);
                 
@@ -6,10 +6,9 @@ import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.core.Input.Validate;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
-import seedbanktree.evolution.tree.SeedbankNode;
+import seedbanktree.evolution.tree.SeedbankEventSweep;
 import seedbanktree.evolution.tree.SeedbankTree;
 
 public class NodeTypeCountsLogger extends CalculationNode implements Loggable, Function {
@@ -25,27 +24,13 @@ public class NodeTypeCountsLogger extends CalculationNode implements Loggable, F
 	
 	public void update() {
 		final SeedbankTree sbTree = seedbankTreeInput.get();
-		counts[0] = 0;
-		counts[1] = 0;
-		
-        for (Node node : sbTree.getNodesAsArray()) {
-        	SeedbankNode sbNode = (SeedbankNode)node;
-        	counts[sbNode.getNodeType()] += 1;
-        			
-            if (node.isRoot()) {
-                continue;
-            }
-            
-            if (sbNode.getNodeType() == 0) {
-//            	assert(sbNode.getChangeCount() % 2 == 1);
-            	counts[0] += sbNode.getChangeCount() / 2;
-    			counts[1] += 1 + sbNode.getChangeCount() / 2;
-            } else {
-//            	assert(sbNode.getChangeCount() % 2 == 0);
-    			counts[0] += sbNode.getChangeCount() / 2;
-    			counts[1] += sbNode.getChangeCount() / 2;
-            }
-        }
+
+        // Nodes and type changes are counted by the tree's shared event
+        // sweep. Each change counts as a node of the type it changes to.
+        SeedbankEventSweep sweep = sbTree.getEventSweep();
+        sweep.update();
+        counts[0] = sweep.getDormantNodeCount() + sweep.getDeactivationCount();
+        counts[1] = sweep.getActiveNodeCount() + sweep.getActivationCount();
 	}
 	
 	@Override
@@ -6,10 +6,9 @@ import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.core.Input.Validate;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
-import seedbanktree.evolution.tree.SeedbankNode;
+import seedbanktree.evolution.tree.SeedbankEventSweep;
 import seedbanktree.evolution.tree.SeedbankTree;
 
 public class TypeChangeCountsLogger extends CalculationNode implements Loggable, Function {
@@ -25,25 +24,12 @@ public class TypeChangeCountsLogger extends CalculationNode implements Loggable,
 	
 	public void update() {
 		final SeedbankTree sbTree = seedbankTreeInput.get();
-		counts[0] = 0;
-		counts[1] = 0;
-		
-        for (Node node : sbTree.getNodesAsArray()) {
-            if (node.isRoot()) {
-                continue;
-            }
 
-            SeedbankNode sbNode = (SeedbankNode)node;
-            if (sbNode.getNodeType() == 0) {
-//            	assert(sbNode.getChangeCount() % 2 == 1);
-            	counts[0] += 1 + sbNode.getChangeCount() / 2;
-    			counts[1] += sbNode.getChangeCount() / 2;
-            } else {
-//            	assert(sbNode.getChangeCount() % 2 == 0);
-    			counts[0] += sbNode.getChangeCount() / 2;
-    			counts[1] += sbNode.getChangeCount() / 2;
-            }
-        }
+        // Type changes are counted by the tree's shared event sweep:
+        SeedbankEventSweep sweep = sbTree.getEventSweep();
+        sweep.update();
+        counts[0] = sweep.getActivationCount();
+        counts[1] = sweep.getDeactivationCount();
 	}
 	
 	@Override
@@ -6,10 +6,9 @@ import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.core.Input.Validate;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
-import seedbanktree.evolution.tree.SeedbankNode;
+import seedbanktree.evolution.tree.SeedbankEventSweep;
 import seedbanktree.evolution.tree.SeedbankTree;
 
 public class TypeLengthsLogger extends CalculationNode implements Loggable, Function {
@@ -25,26 +24,12 @@ public class TypeLengthsLogger extends CalculationNode implements Loggable, Func
 	
 	public void update() {
 		final SeedbankTree sbTree = seedbankTreeInput.get();
-		lengths[0] = 0.0;
-		lengths[1] = 0.0;
 
-        for (Node node : sbTree.getNodesAsArray()) {
-            if (node.isRoot()) {
-                continue;
-            }
-
-            SeedbankNode sbNode = (SeedbankNode)node;
-            int thisType = sbNode.getNodeType();
-            double lastTime = sbNode.getHeight();
-            for (int i = 0; i < sbNode.getChangeCount(); i++) {
-                double nextTime = sbNode.getChangeTime(i);
-                lengths[thisType] += (nextTime - lastTime);
-                lastTime = nextTime;
-                thisType = 1 - thisType;
-            }
-
-            lengths[thisType] += sbNode.getParent().getHeight() - lastTime;
-        }
+        // Lineage times are accumulated by the tree's shared event sweep:
+        SeedbankEventSweep sweep = sbTree.getEventSweep();
+        sweep.update();
+        lengths[0] = sweep.getTotalDormantTime();
+        lengths[1] = sweep.getTotalActiveTime();
 	}
 	
 	@Override
@@ -0,0 +1,134 @@
+package seedbanktree.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import seedbanktree.evolution.tree.SeedbankNode;
+import seedbanktree.evolution.tree.SeedbankTree;
+import seedbanktree.evolution.tree.TransitionModel;
+
+/**
+ * Checks that the path samplers of UniformizationRetypeOperator draw from
+ * the same distribution, and that each returns the path log probability
+ * expected by getBranchTypeProb().
+ */
+public class PathSamplerTest {
+    
+    private static final String[] SAMPLERS = {"auto", "uniformization", "rejection", "direct"};
+    
+    private SeedbankTree tree;
+    private TransitionModel transitionModel;
+    
+    /**
+     * Set up a cherry whose first branch, of length L, runs from typeStart
+     * to typeEnd.
+     */
+    private void setUp(double c, double K, double L, int typeStart, int typeEnd) {
+        SeedbankNode left = new SeedbankNode(), right = new SeedbankNode(), root = new SeedbankNode();
+        left.setNr(0);
+        right.setNr(1);
+        root.setNr(2);
+        left.setHeight(0.0);
+        right.setHeight(0.0);
+        root.setHeight(L);
+        root.addChild(left);
+        root.addChild(right);
+        left.setNodeType(typeStart);
+        right.setNodeType(1);
+        root.setNodeType(typeEnd);
+        tree = new SeedbankTree(root);
+        
+        transitionModel = new TransitionModel();
+        transitionModel.initByName(
+                "c", new RealParameter(String.valueOf(c)),
+                "K", new RealParameter(String.valueOf(K)),
+                "theta", new RealParameter("1.0"));
+    }
+    
+    private RecolorBranch getOperator(String sampler) {
+        RecolorBranch operator = new RecolorBranch();
+        operator.initByName("sbTree", tree, "transitionModel", transitionModel,
+                "pathSampler", sampler);
+        return operator;
+    }
+    
+    @Test
+    public void testPathLogProb() throws Exception {
+        double[][] settings = {
+                {1.0, 2.0, 0.01}, {1.0, 2.0, 1.3}, {1.0, 2.0, 30.0},
+                {0.01, 100.0, 2.0}, {5.0, 0.05, 0.7}};
+        
+        for (String sampler : SAMPLERS) {
+            Randomizer.setSeed(53);
+            for (double[] s : settings) {
+                for (int typeStart = 0; typeStart < 2; typeStart++) {
+                    for (int typeEnd = 0; typeEnd < 2; typeEnd++) {
+                        setUp(s[0], s[1], s[2], typeStart, typeEnd);
+                        RecolorBranch operator = getOperator(sampler);
+                        for (int i = 0; i < 100; i++) {
+                            double logProb = operator.retypeBranch(tree.getNode(0));
+                            assertEquals(operator.getBranchTypeProb(tree.getNode(0)),
+                                    logProb, 1e-10*Math.max(1.0, Math.abs(logProb)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testSamplersAgree() throws Exception {
+        double c = 1.0, K = 2.0, L = 1.3;
+        int N = 20000;
+        
+        // Branch from dormant to active: probability of exactly one change.
+        double a = c*K, b = c;
+        double pOne = a*(Math.exp(-b*L) - Math.exp(-a*L))/(a - b);
+        setUp(c, K, L, 0, 1);
+        pOne /= transitionModel.getSnapshot().getTransitionProb(0, 1, L);
+        
+        for (String sampler : SAMPLERS) {
+            Randomizer.setSeed(17);
+            setUp(c, K, L, 0, 1);
+            RecolorBranch operator = getOperator(sampler);
+            int count = 0;
+            for (int i = 0; i < N; i++) {
+                operator.retypeBranch(tree.getNode(0));
+                if (((SeedbankNode)tree.getNode(0)).getChangeCount() == 1)
+                    count += 1;
+            }
+            assertWithinError(sampler, pOne, (double)count/N, N);
+        }
+        
+        // Branch which starts and ends active: probability of no change.
+        double pNone = Math.exp(-b*L)
+                /transitionModel.getSnapshot().getTransitionProb(1, 1, L);
+        
+        for (String sampler : SAMPLERS) {
+            Randomizer.setSeed(17);
+            setUp(c, K, L, 1, 1);
+            RecolorBranch operator = getOperator(sampler);
+            int count = 0;
+            for (int i = 0; i < N; i++) {
+                operator.retypeBranch(tree.getNode(0));
+                if (((SeedbankNode)tree.getNode(0)).getChangeCount() == 0)
+                    count += 1;
+            }
+            assertWithinError(sampler, pNone, (double)count/N, N);
+        }
+    }
+    
+    /**
+     * Assert that an observed frequency lies within five standard errors
+     * of the probability p.
+     */
+    private static void assertWithinError(String sampler, double p, double freq, int N) {
+        double error = Math.sqrt(p*(1.0 - p)/N);
+        assertTrue(sampler + ": frequency " + freq + ", expected " + p,
+                Math.abs(freq - p) < 5.0*error);
+    }
+}